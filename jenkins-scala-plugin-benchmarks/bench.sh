@@ -0,0 +1,113 @@
+#!/bin/sh
+#
+# Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+# All rights reserved.
+#
+# Redistribution and use in source and binary forms, with or without modification,
+# are permitted provided that the following conditions are met:
+#
+#   Redistributions of source code must retain the above copyright notice, this
+#   list of conditions and the following disclaimer.
+#
+#   Redistributions in binary form must reproduce the above copyright notice, this
+#   list of conditions and the following disclaimer in the documentation and/or
+#   other materials provided with the distribution.
+#
+#   Neither the name of the {organization} nor the names of its
+#   contributors may be used to endorse or promote products derived from
+#   this software without specific prior written permission.
+#
+# THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+# ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+# WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+# DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+# ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+# (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+# LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+# ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+# (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+# SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+#
+# Runs the JMH benchmarks of the Scala plugin, and compares the results of
+# benchmark runs, so that a change can be measured against the commit before it.
+#
+#   ./bench.sh run [jmh options]   runs the benchmarks, recording the results
+#                                  as results/<commit>.csv
+#   ./bench.sh compare <a> <b>     compares the results of commit a with commit b
+#
+# The forked launch benchmark needs a Scala installation, set SCALA_HOME to run it,
+# or exclude it with: ./bench.sh run -e ForkedLaunch
+#
+set -e
+
+cd "$(dirname "$0")"
+
+results=results
+
+case "$1" in
+    run)
+        shift
+        commit=$(git rev-parse --short HEAD)
+        if [ -n "$(git status --porcelain -- ..)" ]; then
+            commit="$commit-dirty"
+        fi
+        (cd .. && mvn -B -q -Pbenchmarks -DskipTests -pl jenkins-scala-plugin-benchmarks -am package)
+        mkdir -p "$results"
+        java -Dscala.home="$SCALA_HOME" -jar target/benchmarks.jar -rf csv -rff "$results/$commit.csv" "$@"
+        echo "Results written to $results/$commit.csv"
+        ;;
+
+    compare)
+        if [ $# -ne 3 ]; then
+            echo "usage: $0 compare <commit a> <commit b>" >&2
+            exit 1
+        fi
+        a="$results/$2.csv"
+        b="$results/$3.csv"
+        for f in "$a" "$b"; do
+            if [ ! -f "$f" ]; then
+                echo "No results for $f, run the benchmarks at that commit first" >&2
+                exit 1
+            fi
+        done
+
+        printf "%-70s %14s %14s %9s  %s\n" "Benchmark" "$2" "$3" "Ratio" "Unit"
+
+        # columns of the JMH csv: "Benchmark","Mode","Threads","Samples","Score","Score Error (99.9%)","Unit",params...
+        awk -F, '
+            function unquote(s) { gsub(/"/, "", s); return s }
+            FNR == 1 { next }
+            {
+                name = unquote($1)
+                for(i = 8; i <= NF; i++) {
+                    if(unquote($i) != "") {
+                        name = name ":" unquote($i)
+                    }
+                }
+                if(FILENAME == ARGV[1]) {
+                    before[name] = $5
+                    unit[name] = unquote($7)
+                } else {
+                    after[name] = $5
+                    if(!(name in unit)) {
+                        unit[name] = unquote($7)
+                    }
+                }
+            }
+            END {
+                for(name in unit) {
+                    if((name in before) && (name in after) && before[name] != 0) {
+                        printf "%-70s %14.3f %14.3f %9.3f  %s\n", name, before[name], after[name], after[name] / before[name], unit[name]
+                    } else {
+                        printf "%-70s %14s %14s %9s  %s\n", name, (name in before) ? before[name] : "-", (name in after) ? after[name] : "-", "-", unit[name]
+                    }
+                }
+            }
+        ' "$a" "$b" | sort
+        ;;
+
+    *)
+        echo "usage: $0 run [jmh options] | compare <commit a> <commit b>" >&2
+        exit 1
+        ;;
+esac
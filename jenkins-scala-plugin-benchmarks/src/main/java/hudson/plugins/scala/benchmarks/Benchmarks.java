@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.benchmarks;
+
+import hudson.plugins.scala.executer.CompileProfiler;
+import hudson.plugins.scala.executer.InVmInlineScript;
+import hudson.plugins.scala.executer.InVmScript;
+import hudson.plugins.scala.executer.PhaseTimings;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import scala.Option;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
+import scala.tools.nsc.GenericRunnerSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+class Benchmarks {
+
+    /**
+     * A script which does as little as possible,
+     * so that the benchmarks measure the executer rather than the script
+     */
+    static final String SCRIPT = "val answer = 6 * 7\n";
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Creates an in-VM script whose output is discarded
+     */
+    static InVmScript inVmScript(final String script) {
+        return new InVmScript(
+            new StreamTaskListener(new NullStream()),
+            new InVmInlineScript(script),
+            JavaConversions.asScalaBuffer(Collections.<File>emptyList()),
+            null,
+            null,
+            File.pathSeparatorChar == ':',
+            new PhaseTimings(),
+            Option.<CompileProfiler>empty(),
+            "",
+            0,
+            false,
+            Option.<File>empty()
+        );
+    }
+
+    /**
+     * Creates compiler settings equivalent to those of the in-VM executer,
+     * the classpath being that of the benchmark JVM
+     *
+     * @param objectName The name of the object to compile the script into
+     */
+    static GenericRunnerSettings settings(final String objectName) {
+        final GenericRunnerSettings settings = new GenericRunnerSettings(new AbstractFunction1<String, BoxedUnit>() {
+            @Override
+            public BoxedUnit apply(final String message) {
+                throw new IllegalArgumentException(message);
+            }
+        });
+        settings.processArgumentString("-usejavacp -Yresolve-term-conflict:object -Xscript " + objectName);
+        return settings;
+    }
+
+    static File createTempDir(final String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if(!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create temporary directory: " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteRecursive(final File file) {
+        final File[] children = file.listFiles();
+        if(children != null) {
+            for(final File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.benchmarks;
+
+import hudson.plugins.scala.executer.ByteArrayClassLoader;
+import hudson.plugins.scala.executer.CompiledClasses;
+import hudson.plugins.scala.executer.ObjectInVmRunner;
+import hudson.plugins.scala.executer.PhaseTimings;
+import hudson.plugins.scala.executer.ScriptClassLoaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+import scala.reflect.io.AbstractFile;
+import scala.reflect.io.Path;
+import scala.runtime.AbstractFunction1;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running a compiled script, through a newly created
+ * classloader for each run, from disk or from memory,
+ * and through a classloader reused from {@link ScriptClassLoaders}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ClassLoaderBenchmark {
+
+    private static final String OBJECT_NAME = "ClassLoaderBenchmarkScript";
+
+    private final ClassLoader parent = getClass().getClassLoader();
+    private final Seq<String> arguments = JavaConversions.asScalaBuffer(Collections.<String>emptyList());
+    private File directory;
+    private CompiledClasses compiled;
+
+    @Setup
+    public void compileScript() throws IOException {
+        directory = Benchmarks.createTempDir("classloader-benchmark");
+        if(!Benchmarks.inVmScript(Benchmarks.SCRIPT).compile(Benchmarks.settings(OBJECT_NAME), directory, parent, PhaseTimings.Compilation())) {
+            throw new IllegalStateException("Benchmark script did not compile");
+        }
+        compiled = CompiledClasses.apply(OBJECT_NAME, AbstractFile.getDirectory(Path.apply(directory)));
+    }
+
+    @TearDown
+    public void deleteScript() {
+        ScriptClassLoaders.clear();
+        Benchmarks.deleteRecursive(directory);
+    }
+
+    @Benchmark
+    public void newClassLoader() throws IOException {
+        final URLClassLoader classLoader = new URLClassLoader(new URL[] { directory.toURI().toURL() }, parent);
+        try {
+            ObjectInVmRunner.run(classLoader, OBJECT_NAME, arguments);
+        } finally {
+            if(classLoader instanceof Closeable) {
+                ((Closeable)classLoader).close();
+            }
+        }
+    }
+
+    @Benchmark
+    public void newMemoryClassLoader() {
+        ObjectInVmRunner.run(new ByteArrayClassLoader(compiled, parent), OBJECT_NAME, arguments);
+    }
+
+    @Benchmark
+    public void cachedClassLoader() {
+        ScriptClassLoaders.withClassLoader(OBJECT_NAME, directory, parent, true, new AbstractFunction1<ClassLoader, Object>() {
+            @Override
+            public Object apply(final ClassLoader classLoader) {
+                ObjectInVmRunner.run(classLoader, OBJECT_NAME, arguments);
+                return null;
+            }
+        });
+    }
+}
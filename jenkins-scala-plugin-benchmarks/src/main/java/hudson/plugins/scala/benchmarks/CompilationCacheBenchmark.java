@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.benchmarks;
+
+import hudson.FilePath;
+import hudson.plugins.scala.executer.CompilationCache;
+import hudson.plugins.scala.executer.CompilationLease;
+import hudson.plugins.scala.executer.CompilationStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+import scala.runtime.AbstractFunction0;
+import scala.runtime.AbstractFunction1;
+import scala.tools.nsc.Settings;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work done for a build whose script is already
+ * held by the compilation cache: calculating the cache key,
+ * and then finding and leasing the compilation from the store
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompilationCacheBenchmark {
+
+    private final Settings settings = Benchmarks.settings("CompilationCacheBenchmarkScript");
+    private final Seq<FilePath> sources = JavaConversions.asScalaBuffer(Collections.<FilePath>emptyList());
+    private final Seq<String> classpathEntries = JavaConversions.asScalaBuffer(Collections.<String>emptyList());
+
+    private byte[] script;
+    private File root;
+    private CompilationStore store;
+    private String key;
+
+    @Setup
+    public void populateStore() throws IOException {
+        script = Benchmarks.SCRIPT.getBytes("UTF-8");
+        root = Benchmarks.createTempDir("compilation-cache-benchmark");
+        store = new CompilationStore(root, Long.MAX_VALUE, Long.MAX_VALUE);
+        key = key();
+
+        //the content of the compilation does not matter, only that the store holds it
+        final Option<CompilationLease> lease = CompilationCache.getOrCompile(key, store, new AbstractFunction1<File, Object>() {
+            @Override
+            public Object apply(final File outputDirectory) {
+                return Boolean.TRUE;
+            }
+        });
+        lease.get().release();
+    }
+
+    @TearDown
+    public void deleteStore() {
+        Benchmarks.deleteRecursive(root);
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return key();
+    }
+
+    @Benchmark
+    public String cacheHit() {
+        final CompilationLease lease = store.acquire(key()).get();
+        try {
+            return lease.key();
+        } finally {
+            lease.release();
+        }
+    }
+
+    private String key() {
+        return CompilationCache.key(new AbstractFunction0<InputStream>() {
+            @Override
+            public InputStream apply() {
+                return new ByteArrayInputStream(script);
+            }
+        }, sources, classpathEntries, settings);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.benchmarks;
+
+import hudson.plugins.scala.executer.CompilerPool;
+import hudson.plugins.scala.executer.InVmScript;
+import hudson.plugins.scala.executer.PhaseTimings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compilation of a script by the in-VM executer,
+ * with a newly created compiler (cold) and with a
+ * compiler reused from the {@link CompilerPool} (warm)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompilerBenchmark {
+
+    private static final String OBJECT_NAME = "CompilerBenchmarkScript";
+
+    private final InVmScript script = Benchmarks.inVmScript(Benchmarks.SCRIPT);
+    private final ClassLoader parent = getClass().getClassLoader();
+    private File outputDirectory;
+
+    @Setup(Level.Iteration)
+    public void createOutputDirectory() throws IOException {
+        outputDirectory = Benchmarks.createTempDir("compiler-benchmark");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutputDirectory() {
+        Benchmarks.deleteRecursive(outputDirectory);
+    }
+
+    /**
+     * Each invocation of the cold benchmark must create its own compiler
+     */
+    @State(Scope.Thread)
+    public static class EmptyPool {
+        @Setup(Level.Invocation)
+        public void clear() {
+            CompilerPool.clear();
+        }
+    }
+
+    @Benchmark
+    public boolean cold(final EmptyPool emptyPool) {
+        return compile();
+    }
+
+    @Benchmark
+    public boolean warm() {
+        return compile();
+    }
+
+    private boolean compile() {
+        final boolean compiled = script.compile(Benchmarks.settings(OBJECT_NAME), outputDirectory, parent, PhaseTimings.Compilation());
+        if(!compiled) {
+            throw new IllegalStateException("Benchmark script did not compile");
+        }
+        return compiled;
+    }
+}
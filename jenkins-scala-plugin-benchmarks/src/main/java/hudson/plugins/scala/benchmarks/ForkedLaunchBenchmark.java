@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launch latency of the forked executer: the time until a
+ * forked scala process has run a script and exited, for a
+ * script compiled by the forked process and for a precompiled script.
+ *
+ * Requires a Scala installation, set by the system property
+ * <code>scala.home</code> or the environment variable <code>SCALA_HOME</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ForkedLaunchBenchmark {
+
+    private static final String OBJECT_NAME = "ForkedLaunchBenchmarkScript";
+
+    private File scalaBin;
+    private File directory;
+    private File script;
+    private File jar;
+
+    @Setup
+    public void precompileScript() throws IOException, InterruptedException {
+        String scalaHome = System.getProperty("scala.home");
+        if(scalaHome == null) {
+            scalaHome = System.getenv("SCALA_HOME");
+        }
+        if(scalaHome == null) {
+            throw new IllegalStateException("Set the system property scala.home or the environment variable SCALA_HOME to benchmark the forked executer");
+        }
+        scalaBin = new File(scalaHome, "bin");
+
+        directory = Benchmarks.createTempDir("forked-launch-benchmark");
+        script = new File(directory, "script.scala");
+        final OutputStream os = new FileOutputStream(script);
+        try {
+            os.write(Benchmarks.SCRIPT.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+
+        jar = new File(directory, "script.jar");
+        launch(executable("scalac"), "-nocompdaemon", "-Xscript", OBJECT_NAME, "-d", jar.getAbsolutePath(), script.getAbsolutePath());
+    }
+
+    @TearDown
+    public void deleteScript() {
+        Benchmarks.deleteRecursive(directory);
+    }
+
+    @Benchmark
+    public int script() throws IOException, InterruptedException {
+        return launch(executable("scala"), "-nocompdaemon", script.getAbsolutePath());
+    }
+
+    @Benchmark
+    public int precompiled() throws IOException, InterruptedException {
+        return launch(executable("scala"), "-nocompdaemon", "-classpath", jar.getAbsolutePath(), OBJECT_NAME);
+    }
+
+    private String executable(final String name) {
+        final boolean windows = File.pathSeparatorChar == ';';
+        return new File(scalaBin, windows ? name + ".bat" : name).getAbsolutePath();
+    }
+
+    private int launch(final String... command) throws IOException, InterruptedException {
+        final List<String> cmd = Arrays.asList(command);
+        final Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+
+        //drain the output so the process can not block on a full pipe
+        final InputStream is = process.getInputStream();
+        try {
+            final byte[] buf = new byte[4096];
+            while(is.read(buf) > -1) {
+            }
+        } finally {
+            is.close();
+        }
+
+        final int exitCode = process.waitFor();
+        if(exitCode != 0) {
+            throw new IllegalStateException("Command " + cmd + " exited with " + exitCode);
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import hudson.model.TaskListener
+import java.lang.management.{ManagementFactory, MemoryType}
+import java.util.concurrent.TimeUnit
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Admits the in-VM compilations, or executions, of scripts, bounding
+ * the number that run at once in this JVM so that many builds starting
+ * together can not exhaust its heap.
+ *
+ * Waiting requests are admitted by their priority, then in favour of
+ * the jobs with the fewest requests already running, and then in the
+ * order that they arrived, so that one job can not starve the others.
+ *
+ * Whilst the headroom of the heap is below the minimum, no further
+ * requests are admitted until those running finish or the garbage
+ * collector frees enough of the heap. A request is always admitted
+ * when nothing else is running, so a small heap can not stall builds.
+ *
+ * @param name What is admitted, for logging
+ * @param maxConcurrent The most requests that may run at once, or 0 for no limit
+ * @param minHeadroom The bytes of headroom that the heap must have before a request is admitted
+ * @param heapHeadroom Gets the bytes of headroom in the heap now
+ */
+class AdmissionControl(val name: String, val maxConcurrent: Int, val minHeadroom: Long, heapHeadroom: () => Long = AdmissionControl.heapHeadroom) {
+
+  private case class Waiter(job: String, priority: Int, sequence: Long)
+
+  private val waiting = mutable.Set.empty[Waiter]
+  private val runningByJob = mutable.Map.empty[String, Int]
+  private var running = 0
+  private var sequence = 0l
+
+  /**
+   * @return the number of requests that are running now
+   */
+  def runningCount : Int = synchronized {
+    running
+  }
+
+  /**
+   * @return the number of requests that are waiting to be admitted
+   */
+  def waitingCount : Int = synchronized {
+    waiting.size
+  }
+
+  /**
+   * Waits for the request to be admitted, and then runs it
+   *
+   * @param job The full name of the job that makes the request
+   * @param priority Requests with a higher priority are admitted first
+   * @param timings Receives the time spent waiting to be admitted
+   * @param phase The phase that the time spent waiting is recorded as
+   * @param listener Receives a message if the request has to wait
+   * @param f The request
+   */
+  def admit[T](job: String, priority: Int, timings: PhaseTimings, phase: String, listener: TaskListener)(f: => T) : T = {
+    val start = System.nanoTime
+    acquire(job, priority, listener)
+    timings.record(phase, PhaseTimings.millisSince(start))
+    try {
+      f
+    } finally {
+      release(job)
+    }
+  }
+
+  private def acquire(job: String, priority: Int, listener: TaskListener) {
+    synchronized {
+      sequence += 1
+      val waiter = Waiter(job, priority, sequence)
+      waiting += waiter
+      try {
+        var logged = false
+        while(!admissible(waiter)) {
+          if(!logged) {
+            listener.getLogger.println(s"Waiting to start $name: $running running, ${waiting.size - 1} others waiting, heap headroom ${heapHeadroom() / AdmissionControl.Megabyte}MB")
+            logged = true
+          }
+          //the headroom of the heap changes without notification, so it is checked again periodically
+          wait(AdmissionControl.RecheckInterval)
+        }
+      } finally {
+        waiting -= waiter
+        //the next waiter may now be admissible
+        notifyAll()
+      }
+      running += 1
+      runningByJob(job) = runningByJob.getOrElse(job, 0) + 1
+    }
+  }
+
+  private def release(job: String) {
+    synchronized {
+      running -= 1
+      runningByJob.get(job) match {
+        case Some(1) => runningByJob -= job
+        case Some(count) => runningByJob(job) = count - 1
+        case None =>
+      }
+      notifyAll()
+    }
+  }
+
+  //the highest priority first, as negating the priority would overflow for the BackgroundPriority
+  private val AdmissionOrder = Ordering.Tuple3(Ordering[Int].reverse, Ordering[Int], Ordering[Long])
+
+  private def admissible(waiter: Waiter) : Boolean = {
+    val next = waiting.minBy(waiter => (waiter.priority, runningByJob.getOrElse(waiter.job, 0), waiter.sequence))(AdmissionOrder)
+    next == waiter && (maxConcurrent <= 0 || running < maxConcurrent) && (running == 0 || heapHeadroom() >= minHeadroom)
+  }
+}
+
+/**
+ * The admission control of the in-VM compilations and executions
+ * of scripts in this JVM, which may be tuned through the system properties:
+ *   hudson.plugins.scala.executer.AdmissionControl.maxCompilations
+ *   hudson.plugins.scala.executer.AdmissionControl.maxExecutions (0 for no limit)
+ *   hudson.plugins.scala.executer.AdmissionControl.minHeapHeadroom (megabytes)
+ */
+object AdmissionControl {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.AdmissionControl"
+
+  private val Megabyte = 1024l * 1024l
+
+  private val RecheckInterval = TimeUnit.SECONDS.toMillis(1)
+
+  /**
+   * The priority of compilations that no build is waiting for
+   */
+  val BackgroundPriority = Int.MinValue
+
+  /**
+   * Each compiler holds its own symbol table of the whole classpath,
+   * so by default only half as many compilations as processors may run at once
+   */
+  val maxCompilations: Int = Integer.getInteger(s"$PropertyPrefix.maxCompilations", math.max(1, Runtime.getRuntime.availableProcessors / 2))
+
+  val maxExecutions: Int = Integer.getInteger(s"$PropertyPrefix.maxExecutions", 0)
+
+  val minHeapHeadroom: Long = java.lang.Long.getLong(s"$PropertyPrefix.minHeapHeadroom", 256) * Megabyte
+
+  val Compilations = new AdmissionControl("compilation", maxCompilations, minHeapHeadroom)
+
+  val Executions = new AdmissionControl("execution", maxExecutions, minHeapHeadroom)
+
+  /**
+   * Estimates the headroom from the usage of each pool of the heap as it
+   * was after the last collection of that pool, so that garbage which is
+   * yet to be collected is not counted as used. A pool which does not
+   * report its usage after collection is counted by its current usage.
+   *
+   * @return the bytes that the heap may yet grow by
+   */
+  def heapHeadroom() : Long = {
+    val used = ManagementFactory.getMemoryPoolMXBeans.asScala.filter(pool => pool.isValid && pool.getType == MemoryType.HEAP).map {
+      pool =>
+        Option(pool.getCollectionUsage).getOrElse(pool.getUsage).getUsed
+    }.sum
+    Runtime.getRuntime.maxMemory - used
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import scala.collection.mutable
+import scala.tools.nsc.{Phase, Settings, SubComponent}
+import scala.tools.nsc.reporters.Reporter
+import scala.tools.reflect.ReflectGlobal
+
+/**
+ * A compiler which records the analysis of the source files
+ * that it compiles, so that they may later be recompiled
+ * incrementally.
+ *
+ * The analysis is only recorded whilst a collector is set,
+ * otherwise the extra phases do nothing.
+ */
+class AnalyzingGlobal(settings: Settings, reporter: Reporter, parent: ClassLoader) extends ReflectGlobal(settings, reporter, parent) {
+
+  @volatile private[executer] var collector: Option[AnalysisCollector] = None
+
+  override protected def computeInternalPhases() {
+    super.computeInternalPhases()
+    addToPhasesSet(apiAnalysis, "records the API and the dependencies of each source file")
+    addToPhasesSet(classFilesAnalysis, "records the class files generated from each source file")
+  }
+
+  /**
+   * Records the API and the dependencies of each
+   * source file once its trees have been typed
+   */
+  object apiAnalysis extends SubComponent {
+    val global: AnalyzingGlobal.this.type = AnalyzingGlobal.this
+    val phaseName = "scala-plugin-dependencies"
+    val runsAfter = List("typer")
+    override val runsBefore = List("pickler")
+    val runsRightAfter = None
+
+    def newPhase(prev: Phase) : Phase = new StdPhase(prev) {
+      override def apply(unit: CompilationUnit) {
+        collector.foreach(analyseDependencies(unit, _))
+      }
+    }
+  }
+
+  /**
+   * Records the class files that are generated from each source file
+   */
+  object classFilesAnalysis extends SubComponent {
+    val global: AnalyzingGlobal.this.type = AnalyzingGlobal.this
+    val phaseName = "scala-plugin-classfiles"
+    val runsAfter = List("jvm")
+    val runsRightAfter = None
+
+    def newPhase(prev: Phase) : Phase = new StdPhase(prev) {
+      override def apply(unit: CompilationUnit) {
+        for(collector <- collector) {
+          val analysis = collector.unit(collector.sourceId(unit.source.file))
+          for(iclass <- unit.icode) {
+            val binaryName = afterFlatten(iclass.symbol.javaBinaryName.toString)
+            analysis.classFiles += binaryName + ".class"
+            if(iclass.symbol.isModuleClass) {
+              //the mirror class which holds the static forwarders of a top-level object
+              analysis.classFiles += binaryName.stripSuffix("$") + ".class"
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private def analyseDependencies(unit: CompilationUnit, collector: AnalysisCollector) {
+    val source = collector.sourceId(unit.source.file)
+    val analysis = collector.unit(source)
+
+    def originOf(sym: Symbol) : Option[DependencyOrigin] = {
+      val topLevel = sym.enclosingTopLevelClass
+      if(topLevel == NoSymbol || topLevel.hasPackageFlag) {
+        None
+      } else {
+        collector.origin(topLevel.associatedFile, topLevel.javaBinaryName.toString, rootClassLoader)
+      }
+    }
+
+    def recordUse(sym: Symbol) {
+      if(sym != null && sym != NoSymbol && !sym.hasPackageFlag) {
+        originOf(sym) match {
+          case Some(SourceOrigin(dependency)) if(dependency != source) =>
+            analysis.usedNames.getOrElseUpdate(dependency, mutable.Set.empty) += sym.decodedName
+          case Some(ClasspathOrigin(classpathEntry, fingerprint)) =>
+            analysis.binaryDependencies(classpathEntry) = fingerprint
+          case _ =>
+        }
+      }
+    }
+
+    def recordSignature(name: String, signature: String) {
+      analysis.signatures(name) = signature :: analysis.signatures.getOrElse(name, Nil)
+    }
+
+    //private members of traits are part of the API, as they are implemented by the classes which inherit the trait
+    def isApi(member: Symbol) = !member.isPrivate || member.owner.isTrait
+
+    def recordApi(sym: Symbol) {
+      val cls = if(sym.isModule) sym.moduleClass else sym
+      recordSignature(sym.decodedName, s"${sym.flagString} ${sym.kindString} ${cls.typeParams.map(_.defString).mkString(", ")} ${cls.info.parents.mkString(", ")} ${cls.typeOfThis}")
+      for(member <- cls.info.decls if(isApi(member) && !member.isModuleClass)) {
+        if(member.isClass || member.isModule) {
+          recordApi(member)
+        } else {
+          recordSignature(member.decodedName, member.defString)
+        }
+        if(member.isImplicit) {
+          analysis.implicitNames += member.decodedName
+        }
+      }
+    }
+
+    def recordInheritance(sym: Symbol) {
+      val cls = if(sym.isModule) sym.moduleClass else sym
+      for(baseClass <- cls.info.baseClasses) {
+        originOf(baseClass) match {
+          case Some(SourceOrigin(dependency)) if(dependency != source) =>
+            analysis.inheritance += dependency
+          case _ =>
+        }
+      }
+    }
+
+    for(tree <- unit.body) {
+      tree match {
+        case implDef: ImplDef if(implDef.symbol != NoSymbol) =>
+          if(implDef.symbol.owner.isPackageClass) {
+            recordApi(implDef.symbol)
+          }
+          recordInheritance(implDef.symbol)
+        case _ =>
+      }
+    }
+
+    val traverser = new Traverser {
+      override def traverse(tree: Tree) {
+        recordUse(tree.symbol)
+        if(tree.tpe != null) {
+          tree.tpe.foreach(tpe => recordUse(tpe.typeSymbolDirect))
+        }
+        tree match {
+          case typeTree: TypeTree if(typeTree.original != null) =>
+            traverse(typeTree.original)
+          case _ =>
+        }
+        super.traverse(tree)
+      }
+    }
+    traverser.traverse(unit.body)
+  }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{ByteArrayInputStream, InputStream}
+import java.lang.ref.SoftReference
+import java.net.{URL, URLConnection, URLStreamHandler}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.JavaConverters._
+import scala.tools.nsc.io.AbstractFile
+
+/**
+ * The classes of a compilation which is held in memory
+ *
+ * @param key The cache key of the compilation
+ * @param classes The bytecode of each class, by its binary name
+ */
+class CompiledClasses private[executer] (val key: String, val classes: Map[String, Array[Byte]]) {
+
+  /**
+   * @return the number of bytes of bytecode
+   */
+  val size : Long = classes.values.map(_.length.toLong).sum
+}
+
+object CompiledClasses {
+
+  /**
+   * Reads the classes that the compiler has written to a directory,
+   * typically a VirtualDirectory
+   *
+   * @param key The cache key of the compilation
+   * @param directory The output directory of the compiler
+   */
+  def apply(key: String, directory: AbstractFile) : CompiledClasses = {
+    def classFiles(directory: AbstractFile, packagePrefix: String) : Iterator[(String, Array[Byte])] = {
+      directory.iterator.flatMap {
+        file =>
+          if(file.isDirectory) {
+            classFiles(file, packagePrefix + file.name + ".")
+          } else if(file.name.endsWith(".class")) {
+            Iterator((packagePrefix + file.name.stripSuffix(".class"), file.toByteArray))
+          } else {
+            Iterator.empty
+          }
+      }
+    }
+    new CompiledClasses(key, classFiles(directory, "").toMap)
+  }
+}
+
+/**
+ * A classloader which defines the classes of a compilation
+ * straight from their bytecode in memory
+ *
+ * The bytecode of each class is released once the class is defined, and
+ * the compilation is only softly referenced, as the classloader may be
+ * cached for far longer than the BytecodeStore holds the compilation.
+ *
+ * @param compiled The classes of the compilation
+ * @param parent The classloader to resolve any other classes from
+ */
+class ByteArrayClassLoader(compiled: CompiledClasses, parent: ClassLoader) extends ClassLoader(parent) {
+
+  private val key = compiled.key
+
+  //the bytecode of the classes which are yet to be defined
+  private val undefined = new ConcurrentHashMap[String, Array[Byte]](compiled.classes.asJava)
+
+  private val reference = new SoftReference(compiled)
+
+  override protected def findClass(name: String) : Class[_] = {
+    Option(undefined.get(name)) match {
+      case Some(bytes) =>
+        val clazz = defineClass(name, bytes, 0, bytes.length)
+        undefined.remove(name)
+        clazz
+      case None =>
+        throw new ClassNotFoundException(name)
+    }
+  }
+
+  /**
+   * Some libraries read the bytecode of a class as a resource
+   */
+  override protected def findResource(name: String) : URL = {
+    classBytes(name).map {
+      bytes =>
+        new URL(null, s"memory:$key/$name", new URLStreamHandler {
+          override def openConnection(url: URL) = new URLConnection(url) {
+            override def connect() {}
+            override def getInputStream : InputStream = new ByteArrayInputStream(bytes)
+          }
+        })
+    }.orNull
+  }
+
+  override def getResourceAsStream(name: String) : InputStream = {
+    classBytes(name).map(new ByteArrayInputStream(_)).getOrElse(super.getResourceAsStream(name))
+  }
+
+  /**
+   * @return the bytecode of a class, or None if it is not of the compilation, or
+   *         it has been defined and the garbage collector has since reclaimed it
+   */
+  private def classBytes(resourceName: String) : Option[Array[Byte]] = {
+    if(resourceName.endsWith(".class")) {
+      val className = resourceName.stripSuffix(".class").replace('/', '.')
+      Option(undefined.get(className)).orElse(Option(reference.get).flatMap(_.classes.get(className)))
+    } else {
+      None
+    }
+  }
+}
+
+/**
+ * A cache in memory of the classes of compiled scripts, for scripts which
+ * are compiled into a VirtualDirectory rather than the CompilationStore,
+ * so that neither compiling nor running them touches the filesystem.
+ *
+ * The cache is bounded by the total bytes of bytecode that it holds,
+ * the least recently used compilations being evicted first. Each
+ * compilation is only softly referenced, so the garbage collector may
+ * also reclaim them when the heap is short.
+ *
+ * The size of the cache may be set through the system property:
+ *   hudson.plugins.scala.executer.BytecodeStore.maxBytes
+ */
+object BytecodeStore {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.BytecodeStore"
+
+  /**
+   * The maximum bytes of bytecode held by the cache
+   */
+  val maxBytes: Long = java.lang.Long.getLong(s"$PropertyPrefix.maxBytes", 64l * 1024 * 1024)
+
+  private class Entry(compiled: CompiledClasses) {
+    val reference = new SoftReference(compiled)
+    val size = compiled.size
+  }
+
+  //access ordered, so that iteration starts at the least recently used
+  private val entries = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true)
+  private var totalBytes = 0l
+
+  private val locks = new ConcurrentHashMap[String, AnyRef]
+
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+
+  /**
+   * @return the number of lookups that found the classes in memory
+   */
+  def hitCount = hits.get
+
+  /**
+   * @return the number of lookups that required a compilation
+   */
+  def missCount = misses.get
+
+  /**
+   * @return the bytes of bytecode held by the cache, including any that the garbage collector has reclaimed
+   */
+  def size : Long = synchronized {
+    totalBytes
+  }
+
+  /**
+   * Gets the classes of the compilation from the cache, compiling them
+   * if the cache does not hold them.
+   *
+   * Concurrent builds of the same script wait for a single compilation.
+   *
+   * @param key The cache key of the compilation
+   * @param compile Compiles the classes, returning None if compilation failed
+   *
+   * @return Some(classes) of the compilation, or None if compilation failed
+   */
+  def getOrCompile(key: String)(compile: => Option[CompiledClasses]) : Option[CompiledClasses] = {
+    get(key) match {
+      case found @ Some(_) =>
+        hits.incrementAndGet
+        found
+
+      case None =>
+        val newLock = new AnyRef
+        val lock = Option(locks.putIfAbsent(key, newLock)).getOrElse(newLock)
+        lock.synchronized {
+          get(key) match {
+            case found @ Some(_) =>
+              hits.incrementAndGet
+              found
+            case None =>
+              misses.incrementAndGet
+              try {
+                val compiled = compile
+                compiled.foreach(put)
+                compiled
+              } finally {
+                locks.remove(key, lock)
+              }
+          }
+        }
+    }
+  }
+
+  /**
+   * Evicts all of the compilations
+   */
+  def clear() {
+    synchronized {
+      entries.clear()
+      totalBytes = 0
+    }
+  }
+
+  private def get(key: String) : Option[CompiledClasses] = synchronized {
+    Option(entries.get(key)).flatMap {
+      entry =>
+        val compiled = Option(entry.reference.get)
+        if(compiled.isEmpty) {
+          //reclaimed by the garbage collector
+          entries.remove(key)
+          totalBytes -= entry.size
+        }
+        compiled
+    }
+  }
+
+  private def put(compiled: CompiledClasses) {
+    synchronized {
+      //a compilation larger than the cache is still run, but not kept
+      if(compiled.size <= maxBytes) {
+        Option(entries.put(compiled.key, new Entry(compiled))).foreach(previous => totalBytes -= previous.size)
+        totalBytes += compiled.size
+
+        val eldest = entries.values.iterator
+        while(totalBytes > maxBytes && eldest.hasNext) {
+          totalBytes -= eldest.next.size
+          eldest.remove()
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import hudson.{EnvVars, FilePath, Launcher}
+import hudson.model.TaskListener
+import hudson.remoting.VirtualChannel
+import java.io.{ByteArrayOutputStream, File => JFile, FileOutputStream, OutputStreamWriter, IOException}
+import java.security.MessageDigest
+import java.util.zip.ZipFile
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Class data sharing archives of the scala-library jar of each Scala
+ * installation, which are cached on each node.
+ *
+ * Launching a precompiled script with the archive maps the classes of
+ * the library from the archive rather than loading and verifying them
+ * again, which shortens the startup of the JVM, and the mapped classes
+ * are shared by all of the JVMs on the node that run at once.
+ *
+ * An archive is named by the installation and the JDK, followed by a
+ * fingerprint of the size and modification time of their files, so that
+ * when either of them changes a new archive is generated and the stale
+ * archive is removed. Fingerprinting by content would mean hashing the
+ * library on the node for every build.
+ *
+ * The archive is dumped from a list of every class in the library, as
+ * application class data sharing requires Java 10 or later, where Java 10
+ * additionally requires it to be enabled with -XX:+UseAppCDS. When the
+ * archive can not be used the JVM ignores it and loads the classes as usual.
+ */
+object ClassDataSharing {
+
+  /**
+   * Version of the archive fingerprint, increment this if
+   * the composition of the fingerprint or the archive changes
+   */
+  private val KeyVersion = "2"
+
+  /**
+   * Location of the archive cache relative to the root of a node
+   */
+  val NodeCachePath = "scala-plugin/cds"
+
+  /**
+   * The earliest Java version that can archive application classes
+   */
+  val MinJavaVersion = 10
+
+  //archives which are being generated, so that concurrent builds do not generate them again
+  private val generating = mutable.Set.empty[String]
+
+  /**
+   * The parameters of the JVM to launch it with an archive
+   */
+  def jvmParameters(archive: SharedArchive) : List[String] = {
+    enableParameters(archive.javaVersion) ++ List(s"-XX:SharedArchiveFile=${archive.file.getRemote}", "-Xshare:auto")
+  }
+
+  /**
+   * Java 10 only archives application classes when asked to, later versions always do
+   */
+  private def enableParameters(javaVersion: Int) : List[String] = if(javaVersion == 10) List("-XX:+UseAppCDS") else Nil
+
+  /**
+   * Gets the major version of a JDK from its release file
+   *
+   * @return Some(version), or None if the JDK has no release file
+   */
+  def javaVersion(javaHome: FilePath) : Option[Int] = {
+    val release = javaHome.child("release")
+    if(!release.exists) {
+      None
+    } else {
+      """JAVA_VERSION="([0-9.]+)""".r.findFirstMatchIn(release.readToString).map(_.group(1).split('.').toList).flatMap {
+        case "1" :: minor :: _ => Some(minor.toInt)
+        case major :: _ => Some(major.toInt)
+        case Nil => None
+      }
+    }
+  }
+
+  /**
+   * Calculates the name of the archive for an installation and a JDK
+   *
+   * @return the name, as the identity of the installation and JDK followed by their fingerprint
+   */
+  def archiveName(scalaLibrary: FilePath, javaHome: FilePath) : String = {
+    def sha(values: Seq[String]) : String = {
+      val digest = MessageDigest.getInstance("SHA-256")
+      for(value <- values) {
+        digest.update(value.getBytes("UTF-8"))
+        digest.update(0.toByte)
+      }
+      digest.digest.map("%02x".format(_)).mkString
+    }
+
+    def fingerprint(file: FilePath) : String = if(file.exists) s"${file.length}:${file.lastModified}" else "missing"
+
+    val identity = sha(Seq(scalaLibrary.getRemote, javaHome.getRemote)).take(16)
+    //the runtime image of the JDK changes with every update of it
+    val fingerprints = sha(Seq(KeyVersion, fingerprint(scalaLibrary), fingerprint(javaHome.child("release")), fingerprint(javaHome.child("lib").child("modules")))).take(16)
+    s"$identity-$fingerprints"
+  }
+
+  /**
+   * Gets the archive for the scala-library of an installation and a JDK
+   * from the cache on the node, generating it if the cache does not hold it.
+   *
+   * If the archive is being generated by another build on the node then
+   * this build does not wait for it.
+   *
+   * @param nodeRoot The root of the node
+   * @param javaHome The JDK that runs the script
+   * @param scalaLibrary The scala-library jar of the installation on the node
+   *
+   * @return Some(archive), or None if there is no archive for this build
+   */
+  def archive(launcher: Launcher, listener: TaskListener, env: EnvVars, workspace: FilePath, nodeRoot: FilePath, javaHome: FilePath, scalaLibrary: FilePath) : Option[SharedArchive] = {
+    javaVersion(javaHome) match {
+      case Some(version) if(version >= MinJavaVersion) =>
+        val cache = nodeRoot.child(NodeCachePath)
+        cache.mkdirs()
+        val name = archiveName(scalaLibrary, javaHome)
+        val archive = cache.child(s"$name.jsa")
+        val generatingKey = s"${nodeRoot.getRemote}:$name"
+
+        if(archive.exists) {
+          Some(SharedArchive(archive, version))
+        } else if(!generating.synchronized(generating.add(generatingKey))) {
+          listener.getLogger.println("[SCALA PLUGIN] The class data sharing archive is being generated by another build, it will be used by later builds")
+          None
+        } else {
+          try {
+            generate(launcher, listener, env, workspace, cache, name, javaHome, version, scalaLibrary)
+          } finally {
+            generating.synchronized(generating.remove(generatingKey))
+          }
+        }
+
+      case Some(version) =>
+        listener.getLogger.println(s"[SCALA PLUGIN WARNING] Class data sharing of Scala classes requires Java $MinJavaVersion or later, but the JDK is Java $version")
+        None
+
+      case None =>
+        listener.getLogger.println(s"[SCALA PLUGIN WARNING] Could not determine the version of the JDK at ${javaHome.getRemote}, class data sharing will not be used")
+        None
+    }
+  }
+
+  private def generate(launcher: Launcher, listener: TaskListener, env: EnvVars, workspace: FilePath, cache: FilePath, name: String, javaHome: FilePath, javaVersion: Int, scalaLibrary: FilePath) : Option[SharedArchive] = {
+    val archive = cache.child(s"$name.jsa")
+    val staging = cache.child(s"$name.${System.nanoTime}.tmp.jsa")
+    val classList = cache.child(s"$name.${System.nanoTime}.classlist")
+    listener.getLogger.println(s"Generating class data sharing archive: ${archive.getRemote}")
+
+    try {
+      val classes = scalaLibrary.act(new ClassList(classList.getRemote))
+      val java = javaHome.child("bin").child("java").getRemote
+      val output = new ByteArrayOutputStream
+      val dumpParameters = enableParameters(javaVersion) ++ List("-Xshare:dump", s"-XX:SharedClassListFile=${classList.getRemote}", s"-XX:SharedArchiveFile=${staging.getRemote}", "-cp", scalaLibrary.getRemote)
+      val dumped = launcher.launch().cmds((java :: dumpParameters).asJava).envs(env).stdout(output).pwd(workspace).join() == 0
+
+      if(dumped && staging.exists) {
+        staging.renameTo(archive)
+        if(staging.exists) {
+          //another build on this node has already generated the archive
+          staging.delete()
+        }
+        removeStale(cache, name)
+        listener.getLogger.println(s"Archived $classes classes of ${scalaLibrary.getRemote}")
+        Some(archive).filter(_.exists).map(SharedArchive(_, javaVersion))
+      } else {
+        listener.getLogger.println("[SCALA PLUGIN WARNING] Could not generate the class data sharing archive:")
+        listener.getLogger.write(output.toByteArray)
+        None
+      }
+    } catch {
+      case ioe: IOException =>
+        listener.getLogger.println(s"[SCALA PLUGIN WARNING] Could not generate the class data sharing archive: ${ioe.getMessage}")
+        None
+    } finally {
+      if(classList.exists) {
+        classList.delete()
+      }
+      if(staging.exists) {
+        staging.delete()
+      }
+    }
+  }
+
+  /**
+   * Removes the archives of the same installation and JDK
+   * whose content has since changed
+   */
+  private def removeStale(cache: FilePath, name: String) {
+    val identity = name.takeWhile(_ != '-')
+    for(stale <- cache.list(s"$identity-*.jsa") if(stale.getName != s"$name.jsa")) {
+      stale.delete()
+    }
+  }
+}
+
+/**
+ * An archive of the classes of a scala-library
+ *
+ * @param file The archive on the node
+ * @param javaVersion The major version of the JDK that dumped the archive
+ */
+case class SharedArchive(file: FilePath, javaVersion: Int)
+
+/**
+ * Writes the names of the classes in a jar to a class list
+ * file on the same node, as read by -XX:SharedClassListFile
+ *
+ * @param classList The path of the class list file
+ *
+ * @return the number of classes in the list
+ */
+class ClassList(classList: String) extends FilePath.FileCallable[Integer] {
+  def invoke(jar: JFile, channel: VirtualChannel) : Integer = {
+    val zip = new ZipFile(jar)
+    try {
+      val classes = zip.entries.asScala.map(_.getName).filter(name => name.endsWith(".class") && !name.startsWith("META-INF/") && name != "module-info.class").map(_.stripSuffix(".class")).toList
+      val writer = new OutputStreamWriter(new FileOutputStream(classList), "UTF-8")
+      try {
+        classes.foreach(className => writer.write(className + "\n"))
+      } finally {
+        writer.close()
+      }
+      classes.size
+    } finally {
+      zip.close()
+    }
+  }
+}
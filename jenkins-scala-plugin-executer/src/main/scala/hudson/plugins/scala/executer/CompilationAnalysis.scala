@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{File => JFile, FileInputStream, FileOutputStream, IOException, ObjectInputStream, ObjectOutputStream}
+import java.net.URL
+import scala.collection.mutable
+import scala.reflect.io.AbstractFile
+
+/**
+ * The analysis of one source file of a compilation
+ *
+ * @param source The identity of the source file, its name, or ScriptUnit for the script
+ * @param contentHash A hash of the content of the source file
+ * @param classFiles The paths of the class files generated from the source file, relative to the output directory
+ * @param nameHashes A hash of the signatures of the members of the API of the source file, by name
+ * @param implicitNames The names of the implicit members of the API of the source file
+ * @param usedNames The names that the source file uses from each of the other source files that it depends on
+ * @param inheritance The source files that define the classes and traits which are inherited by the source file
+ * @param binaryDependencies The fingerprints of the user defined classpath entries that the source file depends on
+ */
+@SerialVersionUID(1l)
+case class UnitAnalysis(source: String, contentHash: String, classFiles: Set[String], nameHashes: Map[String, Int], implicitNames: Set[String], usedNames: Map[String, Set[String]], inheritance: Set[String], binaryDependencies: Map[String, String]) {
+
+  /**
+   * @return the names of the API which differ between this
+   *         analysis and a later analysis of the same source file
+   */
+  def changedNames(later: UnitAnalysis) : Set[String] = {
+    (nameHashes.keySet ++ later.nameHashes.keySet).filter(name => nameHashes.get(name) != later.nameHashes.get(name))
+  }
+}
+
+/**
+ * The analysis of a compilation, which is stored with its
+ * entry in the CompilationStore so that a later compilation of
+ * changed sources only needs to recompile the affected source files.
+ *
+ * In the same way as the name hashing of Zinc, a source file
+ * is only invalidated by a change to the API of a source file that it
+ * depends on if it uses one of the changed names, or if it inherits from
+ * the changed source file, or if an implicit member has changed.
+ *
+ * @param units The analysis of each source file, by its identity
+ */
+@SerialVersionUID(1l)
+case class CompilationAnalysis(units: Map[String, UnitAnalysis]) {
+
+  /**
+   * @return the identity of the source file that generated each class file
+   */
+  def classFileOwners : Map[String, String] = {
+    for(unit <- units.values; classFile <- unit.classFiles) yield (classFile, unit.source)
+  }.toMap
+
+  def ++(other: CompilationAnalysis) = CompilationAnalysis(units ++ other.units)
+
+  def --(sources: Iterable[String]) = CompilationAnalysis(units -- sources)
+
+  /**
+   * Finds the source files that must be recompiled because of
+   * changes to the source files that they depend on
+   *
+   * @param changes The names of the API that have changed, by the source file that defines them
+   * @param previous The analysis of the changed source files before they were changed
+   * @param removed Source files which have been removed
+   *
+   * @return the identities of the invalidated source files
+   */
+  def invalidatedBy(changes: Map[String, Set[String]], previous: CompilationAnalysis, removed: Set[String]) : Set[String] = {
+    val implicitChanges = changes.filter {
+      case (source, names) =>
+        val implicitNames = previous.units.get(source).map(_.implicitNames).getOrElse(Set.empty) ++ units.get(source).map(_.implicitNames).getOrElse(Set.empty)
+        names.exists(implicitNames.contains)
+    }.keySet
+
+    units.values.filter {
+      unit =>
+        unit.usedNames.exists {
+          case (dependency, usedNames) =>
+            val changed = changes.getOrElse(dependency, Set.empty)
+            removed.contains(dependency) || implicitChanges.contains(dependency) ||
+              (changed.nonEmpty && (unit.inheritance.contains(dependency) || usedNames.exists(changed.contains)))
+        }
+    }.map(_.source).toSet
+  }
+}
+
+object CompilationAnalysis {
+
+  /**
+   * The identity of the script, which has no stable
+   * name as its object is named after the cache key
+   */
+  val ScriptUnit = "<script>"
+
+  /**
+   * The name of the file that holds the analysis in the output directory
+   */
+  val FileName = ".scala-analysis"
+
+  /**
+   * Version of the analysis file, increment this if
+   * the composition of the analysis changes
+   */
+  private val FormatVersion = 1
+
+  /**
+   * The maximum number of rounds of an incremental compilation before
+   * it gives up and all of the source files are compiled instead, may be
+   * set by the system property:
+   *   hudson.plugins.scala.executer.CompilationAnalysis.maxRounds
+   */
+  val maxRounds: Int = Integer.getInteger("hudson.plugins.scala.executer.CompilationAnalysis.maxRounds", 5)
+
+  val empty = CompilationAnalysis(Map.empty)
+
+  /**
+   * Reads the analysis stored with a compilation
+   *
+   * @return Some(analysis), or None if there is no readable analysis
+   */
+  def read(directory: JFile) : Option[CompilationAnalysis] = {
+    val file = new JFile(directory, FileName)
+    if(!file.isFile) {
+      None
+    } else {
+      try {
+        using(new FileInputStream(file)) {
+          is =>
+            val ois = new ObjectInputStream(is)
+            if(ois.readInt == FormatVersion) {
+              Some(ois.readObject.asInstanceOf[CompilationAnalysis])
+            } else {
+              None
+            }
+        }
+      } catch {
+        case e: IOException => None
+        case e: ClassNotFoundException => None
+        case e: ClassCastException => None
+      }
+    }
+  }
+
+  /**
+   * Writes the analysis of a compilation into its output directory
+   */
+  def write(directory: JFile, analysis: CompilationAnalysis) {
+    using(new FileOutputStream(new JFile(directory, FileName))) {
+      os =>
+        val oos = new ObjectOutputStream(os)
+        oos.writeInt(FormatVersion)
+        oos.writeObject(analysis)
+        oos.flush()
+    }
+  }
+}
+
+/**
+ * Accumulates the analysis of a source file whilst it is compiled
+ */
+private[executer] class UnitAnalysisBuilder(val source: String) {
+  val classFiles = mutable.Set.empty[String]
+  val signatures = mutable.Map.empty[String, List[String]]
+  val implicitNames = mutable.Set.empty[String]
+  val usedNames = mutable.Map.empty[String, mutable.Set[String]]
+  val inheritance = mutable.Set.empty[String]
+  val binaryDependencies = mutable.Map.empty[String, String]
+
+  def result(contentHash: String) : UnitAnalysis = {
+    //the signatures of overloaded members are sorted so that the hash does not depend on the order of declaration
+    val nameHashes = signatures.map { case (name, signatures) => (name, signatures.sorted.mkString("\u0000").hashCode) }.toMap
+    UnitAnalysis(source, contentHash, classFiles.toSet, nameHashes, implicitNames.toSet, usedNames.map { case (dependency, names) => (dependency, names.toSet) }.toMap, inheritance.toSet, binaryDependencies.toMap)
+  }
+}
+
+/**
+ * Where a symbol that a source file depends on was defined
+ */
+private[executer] sealed trait DependencyOrigin
+
+/**
+ * Defined by another source file of the compilation
+ */
+private[executer] case class SourceOrigin(source: String) extends DependencyOrigin
+
+/**
+ * Defined by a user defined classpath entry
+ */
+private[executer] case class ClasspathOrigin(classpathEntry: String, fingerprint: String) extends DependencyOrigin
+
+/**
+ * Collects the analysis of the source files of a compilation,
+ * it is given to an AnalyzingGlobal for the duration of a run
+ *
+ * @param sources The identities of the further source files, by their path
+ * @param outputDirectory The output directory of the compilation, which may hold classes from a previous compilation
+ * @param classFileOwners The identity of the source file of each class file in the output directory
+ * @param classpathEntries The user defined classpath entries
+ */
+private[executer] class AnalysisCollector(sources: Map[String, String], outputDirectory: JFile, classFileOwners: Map[String, String], classpathEntries: Seq[String]) {
+
+  private val units = mutable.Map.empty[String, UnitAnalysisBuilder]
+
+  private val outputPath = outputDirectory.getAbsolutePath + JFile.separator
+
+  private val fingerprints = classpathEntries.map(classpathEntry => (new JFile(classpathEntry).getAbsolutePath, CompilationCache.fingerprint(new JFile(classpathEntry)))).toMap
+
+  def unit(source: String) : UnitAnalysisBuilder = units.getOrElseUpdate(source, new UnitAnalysisBuilder(source))
+
+  /**
+   * @return the identity of a further source file, or the ScriptUnit
+   */
+  def sourceId(file: AbstractFile) : String = sources.getOrElse(file.path, CompilationAnalysis.ScriptUnit)
+
+  private val classOrigins = mutable.Map.empty[String, Option[DependencyOrigin]]
+
+  /**
+   * Finds where a top-level class that a source file depends on was defined
+   *
+   * @param file The file associated with the class by the compiler, if any
+   * @param binaryName The binary name of the class, e.g. "pkg/Name"
+   * @param classLoader The classloader that the compiler resolves classes through
+   */
+  def origin(file: AbstractFile, binaryName: String, classLoader: ClassLoader) : Option[DependencyOrigin] = {
+    Option(file).flatMap(file => sources.get(file.path)) match {
+      case Some(source) =>
+        Some(SourceOrigin(source))
+      case None =>
+        classOrigins.getOrElseUpdate(binaryName, classOrigin(binaryName, classLoader))
+    }
+  }
+
+  private def classOrigin(binaryName: String, classLoader: ClassLoader) : Option[DependencyOrigin] = {
+    val classFile = binaryName + ".class"
+    val path = Option(classLoader.getResource(classFile)).flatMap {
+      url =>
+        url.getProtocol match {
+          case "file" =>
+            Some(new JFile(url.toURI).getAbsolutePath)
+          case "jar" =>
+            //jar:file:/path/to/archive.jar!/pkg/Name.class
+            val archive = url.getPath.takeWhile(_ != '!')
+            if(archive.startsWith("file:")) Some(new JFile(new URL(archive).toURI).getAbsolutePath) else None
+          case _ =>
+            None
+        }
+    }
+
+    path.flatMap {
+      path =>
+        if(path.startsWith(outputPath)) {
+          classFileOwners.get(path.substring(outputPath.length).replace(JFile.separatorChar, '/')).map(SourceOrigin)
+        } else {
+          fingerprints.collectFirst {
+            case (classpathEntry, fingerprint) if(path == classpathEntry || path.startsWith(classpathEntry + JFile.separator)) =>
+              ClasspathOrigin(classpathEntry, fingerprint)
+          }
+        }
+    }
+  }
+
+  /**
+   * @param contentHashes The content hash of each source file
+   *
+   * @return the analysis of the compiled source files
+   */
+  def complete(contentHashes: Map[String, String]) : CompilationAnalysis = {
+    for(unit <- units.values) {
+      //not every candidate class file is generated, e.g. the mirror class of an object with a companion class
+      unit.classFiles.retain(classFile => new JFile(outputDirectory, classFile).isFile)
+    }
+    CompilationAnalysis(units.map { case (source, unit) => (source, unit.result(contentHashes.getOrElse(source, ""))) }.toMap)
+  }
+}
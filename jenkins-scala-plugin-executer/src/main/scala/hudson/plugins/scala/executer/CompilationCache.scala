@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import hudson.FilePath
+import java.io.{File => JFile, InputStream}
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import scala.tools.nsc.Settings
+
+/**
+ * A content addressed cache of compiled scripts, shared by
+ * every job that runs on the controller, or on the same agent.
+ *
+ * Entries are keyed by a SHA-256 hash of everything that can
+ * affect the output of the compiler: the content of the script and
+ * of any further source files, the user classpath entries and their fingerprints, the compiler settings
+ * and the Scala version. The same script used by many jobs is
+ * therefore only compiled once, and the cache survives the
+ * workspace being wiped.
+ */
+object CompilationCache {
+
+  /**
+   * Version of the cache key, increment this if
+   * the composition of the key changes
+   */
+  private val KeyVersion = "2"
+
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+
+  /**
+   * @return the number of lookups that found a cached compilation
+   */
+  def hitCount = hits.get
+
+  /**
+   * @return the number of lookups that required a compilation
+   */
+  def missCount = misses.get
+
+  /**
+   * Calculates the cache key for compiling a script
+   *
+   * @param script Opens the content of the script to be compiled
+   * @param sources Further source files compiled together with the script
+   * @param classpathEntries The user defined classpath entries
+   * @param settings The compiler settings
+   *
+   * @return a hex encoded SHA-256 hash
+   */
+  def key(script: => InputStream, sources: Seq[FilePath], classpathEntries: Seq[String], settings: Settings) : String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+
+    def update(value: String) {
+      digest.update(value.getBytes("UTF-8"))
+      digest.update(0.toByte)
+    }
+
+    update(KeyVersion)
+    update(scala.util.Properties.versionNumberString)
+    CompilerPool.compilerArguments(settings).foreach(update)
+
+    for(classpathEntry <- classpathEntries) {
+      update(classpathEntry)
+      update(fingerprint(new JFile(classpathEntry)))
+    }
+
+    def updateContent(open: => InputStream) {
+      using(open) {
+        is =>
+          val buf = new Array[Byte](8192)
+          var read = is.read(buf)
+          while(read > -1) {
+            digest.update(buf, 0, read)
+            read = is.read(buf)
+          }
+      }
+      digest.update(0.toByte)
+    }
+
+    updateContent(script)
+
+    //only the names of the source files are compiled into the classes, so the same sources in any directory share a compilation
+    for(source <- sources) {
+      update(source.getName)
+      updateContent(source.read)
+    }
+
+    digest.digest.map("%02x".format(_)).mkString
+  }
+
+  /**
+   * Calculates the lineage of the compilations of a script, which
+   * identifies the previous compilation of the same script and source
+   * files that a changed compilation may be incrementally compiled from.
+   *
+   * Unlike the cache key the lineage excludes the content of the script,
+   * the source files and the classpath entries.
+   *
+   * @param script The path of the script
+   * @param sources The paths of further source files compiled together with the script
+   * @param classpathEntries The user defined classpath entries
+   * @param settings The compiler settings
+   *
+   * @return a hex encoded SHA-256 hash
+   */
+  def lineage(script: String, sources: Seq[String], classpathEntries: Seq[String], settings: Settings) : String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    for(value <- KeyVersion +: scala.util.Properties.versionNumberString +: (CompilerPool.compilerArguments(settings) ++ classpathEntries ++ (script +: sources))) {
+      digest.update(value.getBytes("UTF-8"))
+      digest.update(0.toByte)
+    }
+    digest.digest.map("%02x".format(_)).mkString
+  }
+
+  /**
+   * Fingerprints a classpath entry by its size and modification time,
+   * which is much cheaper than hashing the content of large jar files.
+   *
+   * Rewriting a class within a package directory does not change the
+   * modification time of the root directory, so a directory is
+   * fingerprinted by walking it, by the number and total size of its
+   * files and the latest modification time of them and its directories.
+   */
+  private[executer] def fingerprint(classpathEntry: JFile) : String = {
+    if(classpathEntry.isFile) {
+      s"${classpathEntry.length}:${classpathEntry.lastModified}"
+    } else if(classpathEntry.isDirectory) {
+      var files = 0l
+      var size = 0l
+      var lastModified = 0l
+      def walk(file: JFile) {
+        lastModified = math.max(lastModified, file.lastModified)
+        if(file.isDirectory) {
+          Option(file.listFiles).getOrElse(Array.empty[JFile]).foreach(walk)
+        } else {
+          files += 1
+          size += file.length
+        }
+      }
+      walk(classpathEntry)
+      s"dir:$files:$size:$lastModified"
+    } else {
+      "missing"
+    }
+  }
+
+  /**
+   * The name of the object that the script is compiled into.
+   *
+   * As compilations are shared between jobs this is derived
+   * from the cache key rather than the name of the script file.
+   */
+  def scriptObjectName(key: String) = "ScalaScript_" + key.take(16)
+
+  /**
+   * Gets the compilation for the key from the cache, compiling
+   * it if the cache does not hold it.
+   *
+   * Concurrent builds of the same script wait for a single compilation.
+   *
+   * @param key The cache key
+   * @param store The store which holds the compilations
+   * @param compile Compiles into the provided directory, returning true on success
+   *
+   * @return Some(lease) on the compilation, or None if compilation failed
+   */
+  def getOrCompile(key: String, store: CompilationStore = CompilationStore.default)(compile: JFile => Boolean) : Option[CompilationLease] = {
+    var compiled = false
+    val lease = store.acquireOrStore(key) {
+      outputDirectory =>
+        compiled = true
+        compile(outputDirectory)
+    }
+
+    if(compiled) {
+      misses.incrementAndGet
+    } else {
+      hits.incrementAndGet
+    }
+    lease
+  }
+}
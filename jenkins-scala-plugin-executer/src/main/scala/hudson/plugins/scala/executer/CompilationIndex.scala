@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{BufferedReader, File => JFile, FileInputStream, FileOutputStream, InputStreamReader, IOException, OutputStreamWriter, RandomAccessFile}
+import java.util.logging.{Level, Logger}
+import java.util.zip.CRC32
+
+/**
+ * A record of an entry in the CompilationIndex
+ *
+ * @param size The size of the entry in bytes
+ * @param lastAccess The time that the entry was last used
+ */
+case class IndexRecord(size: Long, lastAccess: Long)
+
+/**
+ * An append-only index of the entries of a CompilationStore.
+ *
+ * The index starts with a header line giving its format version,
+ * followed by one line per change to the store:
+ *
+ *   crc32 PUT key size lastAccess
+ *   crc32 TOUCH key lastAccess
+ *   crc32 REMOVE key
+ *
+ * Each change is a single append, so updates are O(1). A crash can
+ * at worst leave a partial last line, which is detected by its checksum
+ * and ignored, and which is truncated before the next append. When the index has grown to several times the number of
+ * live entries it is compacted by writing a new index alongside and
+ * then renaming it over the old one.
+ *
+ * Writes are serialised within the JVM and with other processes
+ * through a lock file that sits alongside the index.
+ *
+ * @param file The file that holds the index
+ */
+class CompilationIndex(val file: JFile) {
+
+  import CompilationIndex._
+
+  private val lockFile = new JFile(file.getParentFile, file.getName + ".lock")
+
+  private var records = 0
+  private var corrupt = false
+
+  /**
+   * Reads the entries from the index
+   *
+   * @return Some(entries) or None if there is no index, or the index
+   *         was written in a format that we do not understand
+   */
+  def load() : Option[Map[String, IndexRecord]] = synchronized {
+    if(!file.exists) {
+      None
+    } else {
+      using(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+        reader =>
+          Option(reader.readLine) match {
+            case Some(Header(version)) if(version.toInt == FormatVersion) =>
+              Some(readRecords(reader))
+            case Some(Header(version)) =>
+              LOGGER.log(Level.WARNING, s"Ignoring compilation index $file with unsupported format version $version, the index will be rebuilt")
+              None
+            case _ =>
+              LOGGER.log(Level.WARNING, s"Ignoring compilation index $file which has no valid header, the index will be rebuilt")
+              None
+          }
+      }
+    }
+  }
+
+  def put(key: String, record: IndexRecord) {
+    append(s"PUT $key ${record.size} ${record.lastAccess}")
+  }
+
+  def touch(key: String, lastAccess: Long) {
+    append(s"TOUCH $key $lastAccess")
+  }
+
+  def remove(key: String) {
+    append(s"REMOVE $key")
+  }
+
+  /**
+   * @return true if the index has grown large enough that
+   *         it should be compacted, or was found to be corrupt
+   */
+  def needsCompaction(entryCount: Int) : Boolean = synchronized {
+    corrupt || (records > CompactionThreshold && records > entryCount * CompactionRatio)
+  }
+
+  /**
+   * Replaces the index with one that holds the given entries, together
+   * with the live entries which other processes sharing the index have
+   * recorded in it since it was loaded
+   *
+   * @param entries The entries known to this process
+   * @param live true if an entry which is only in the index on disk still exists
+   */
+  def compact(entries: Map[String, IndexRecord], live: String => Boolean = _ => true) {
+    synchronized {
+      withFileLock(lockFile) {
+        val onDisk = load().getOrElse(Map.empty[String, IndexRecord])
+        val merged = onDisk.filterKeys(key => !entries.contains(key) && live(key)) ++ entries.map {
+          case (key, record) =>
+            //another process may have used the entry more recently
+            (key, record.copy(lastAccess = math.max(record.lastAccess, onDisk.get(key).map(_.lastAccess).getOrElse(0l))))
+        }
+
+        val compacted = new JFile(file.getParentFile, file.getName + ".compact")
+        val os = new FileOutputStream(compacted)
+        try {
+          val writer = new OutputStreamWriter(os, "UTF-8")
+          writer.write(s"$HeaderPrefix $FormatVersion\n")
+          for((key, record) <- merged) {
+            writer.write(checksummed(s"PUT $key ${record.size} ${record.lastAccess}"))
+          }
+          writer.flush()
+          os.getFD.sync()
+        } finally {
+          os.close()
+        }
+
+        //rename is atomic on the same filesystem, windows will not rename over an existing file
+        if(!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+          throw new IOException(s"Unable to replace compilation index: $file")
+        }
+        records = merged.size
+      }
+      corrupt = false
+    }
+  }
+
+  private def append(record: String) {
+    synchronized {
+      withFileLock(lockFile) {
+        using(new RandomAccessFile(file, "rw")) {
+          raf =>
+            if(raf.length > 0) {
+              truncatePartialLine(raf)
+            }
+            if(raf.length == 0) {
+              raf.write(s"$HeaderPrefix $FormatVersion\n".getBytes("UTF-8"))
+            }
+            raf.seek(raf.length)
+            raf.write(checksummed(record).getBytes("UTF-8"))
+        }
+      }
+      records += 1
+    }
+  }
+
+  /**
+   * Removes a partial last line left by a crash, as a
+   * record appended after it would be read as part of it
+   */
+  private def truncatePartialLine(raf: RandomAccessFile) {
+    var end = raf.length
+    raf.seek(end - 1)
+    if(raf.read() != '\n') {
+      val buf = new Array[Byte](4096)
+      var newline = -1l
+      while(newline < 0 && end > 0) {
+        val start = math.max(0, end - buf.length)
+        raf.seek(start)
+        raf.readFully(buf, 0, (end - start).toInt)
+        var i = (end - start).toInt - 1
+        while(i >= 0 && newline < 0) {
+          if(buf(i) == '\n') {
+            newline = start + i
+          }
+          i -= 1
+        }
+        end = start
+      }
+      LOGGER.log(Level.WARNING, s"Truncating a partially written record from compilation index $file")
+      raf.setLength(newline + 1)
+    }
+  }
+
+  private def readRecords(reader: BufferedReader) : Map[String, IndexRecord] = {
+    var entries = Map.empty[String, IndexRecord]
+    var line = reader.readLine
+    var valid = true
+    records = 0
+    while(line != null && valid) {
+      line.split(' ').toList match {
+        case crc :: record if(checksum(record.mkString(" ")) == crc) =>
+          record match {
+            case "PUT" :: key :: size :: lastAccess :: Nil =>
+              entries += (key -> IndexRecord(size.toLong, lastAccess.toLong))
+            case "TOUCH" :: key :: lastAccess :: Nil =>
+              entries.get(key).foreach(existing => entries += (key -> existing.copy(lastAccess = lastAccess.toLong)))
+            case "REMOVE" :: key :: Nil =>
+              entries -= key
+            case _ =>
+              //unknown operation from a newer minor revision of the format
+          }
+          records += 1
+        case _ =>
+          //a partially written record, nothing after it can be trusted
+          LOGGER.log(Level.WARNING, s"Compilation index $file has a corrupt record, ignoring the remainder of the index")
+          valid = false
+          corrupt = true
+      }
+      line = reader.readLine
+    }
+    entries
+  }
+}
+
+object CompilationIndex {
+  private val LOGGER = Logger.getLogger(classOf[CompilationIndex].getName)
+
+  /**
+   * Version of the index format, increment this when
+   * making an incompatible change to the format
+   */
+  val FormatVersion = 1
+
+  private val HeaderPrefix = "scala-plugin-compilation-index"
+  private val Header = s"""$HeaderPrefix (\\d+)""".r
+
+  private val CompactionThreshold = 1024
+  private val CompactionRatio = 4
+
+  private def checksum(record: String) : String = {
+    val crc = new CRC32
+    crc.update(record.getBytes("UTF-8"))
+    java.lang.Long.toHexString(crc.getValue)
+  }
+
+  private def checksummed(record: String) = s"${checksum(record)} $record\n"
+}
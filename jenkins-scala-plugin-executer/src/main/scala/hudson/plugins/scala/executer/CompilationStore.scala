@@ -0,0 +1,533 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import hudson.FilePath
+import java.io.{File => JFile, IOException, RandomAccessFile}
+import java.nio.channels.{FileLock, OverlappingFileLockException}
+import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutionException, FutureTask, TimeUnit}
+import jenkins.model.Jenkins
+import scala.collection.mutable
+
+/**
+ * A lease on an entry of the CompilationStore, the entry
+ * will not be evicted until the lease is released
+ */
+class CompilationLease private[executer] (val key: String, val directory: JFile, store: CompilationStore) {
+  private var released = false
+
+  def release() {
+    synchronized {
+      if(!released) {
+        released = true
+        store.release(key)
+      }
+    }
+  }
+}
+
+/**
+ * A bounded store of compiled output.
+ *
+ * Each entry is a directory of class files named after its key, and
+ * the entries are recorded in a CompilationIndex. The store is limited in both total size and the age of its entries, and
+ * evicts the least recently used entries when it is over quota. Entries
+ * which are leased by a running build are never evicted.
+ *
+ * Concurrent requests for the same missing entry are coalesced, so that
+ * it is only compiled once and the other builds wait for the result. The
+ * compilation is also guarded by a file lock, so that other processes
+ * sharing the same root do not compile the same entry at the same time.
+ *
+ * Whilst an entry is leased by this JVM it holds a shared lock on the
+ * lease file of the entry, and an entry is only evicted by a process
+ * which can take an exclusive lock on it, so no process evicts an entry
+ * that another process is using. The shared lock is held per key rather
+ * than per entry, so that it outlives an entry which is replaced whilst
+ * it is still leased.
+ *
+ * @param root The directory that holds the entries of the store
+ * @param maxSize The maximum total size of the store in bytes
+ * @param maxAge The maximum time in milliseconds since an entry was last used
+ */
+class CompilationStore(val root: JFile, val maxSize: Long, val maxAge: Long) {
+
+  private class Entry(val directory: JFile, val size: Long, var lastAccess: Long)
+
+  private class LeaseLock(val raf: RandomAccessFile, val lock: FileLock) {
+    var users = 0
+  }
+
+  private val StagingSuffix = ".tmp"
+
+  private val LineageSuffix = ".lineage"
+
+  private val LeaseSuffix = ".lease"
+
+  private val index = new CompilationIndex(new JFile(root, "index"))
+
+  private lazy val entries : mutable.Map[String, Entry] = open()
+
+  private val LocksDirectory = "locks"
+
+  private val locks = new StripedFileLock(new JFile(root, LocksDirectory))
+
+  private val inFlight = new ConcurrentHashMap[String, FutureTask[Option[CompilationLease]]]
+
+  //the shared locks on the lease files of the entries which this JVM has leased, by key
+  private val leaseLocks = mutable.Map.empty[String, LeaseLock]
+
+  private val LeaseLockRetryInterval = 100l
+
+  private val LeaseLockTimeout = TimeUnit.MINUTES.toMillis(1)
+
+  /**
+   * @return the total size in bytes of the entries in the store
+   */
+  def size : Long = synchronized {
+    entries.values.map(_.size).sum
+  }
+
+  /**
+   * @return the number of entries in the store
+   */
+  def entryCount : Int = synchronized {
+    entries.size
+  }
+
+  /**
+   * Leases an existing entry
+   *
+   * @return Some(lease) if the store holds an entry for the key, otherwise None
+   */
+  def acquire(key: String) : Option[CompilationLease] = synchronized {
+    entries.get(key) match {
+      case Some(entry) if(entry.directory.isDirectory) =>
+        lease(key, entry)
+      case Some(entry) =>
+        //the entry has been removed from underneath us
+        removed(key)
+        None
+      case None =>
+        adopt(key)
+    }
+  }
+
+  /**
+   * Leases an existing entry, or creates it if it does not exist.
+   *
+   * Only one thread compiles a missing entry, any other threads
+   * that request the same entry wait for it to be compiled.
+   *
+   * @param key The key of the entry
+   * @param compile Compiles into the provided directory, returning true on success
+   *
+   * @return Some(lease) on the entry, or None if compilation failed
+   */
+  def acquireOrStore(key: String)(compile: JFile => Boolean) : Option[CompilationLease] = {
+    acquire(key) orElse {
+      val task = new FutureTask[Option[CompilationLease]](new Callable[Option[CompilationLease]] {
+        override def call() = locks.withLock(key) {
+          //another process may have stored the entry whilst we waited for the lock
+          acquire(key) orElse store(key)(compile)
+        }
+      })
+
+      val existing = inFlight.putIfAbsent(key, task)
+      try {
+        if(existing == null) {
+          try {
+            task.run()
+            task.get
+          } finally {
+            inFlight.remove(key, task)
+          }
+        } else {
+          //wait for the other compilation, and then take our own lease on its result
+          existing.get match {
+            case Some(_) => acquire(key)
+            case None => None
+          }
+        }
+      } catch {
+        case ee: ExecutionException =>
+          throw ee.getCause
+      }
+    }
+  }
+
+  /**
+   * Creates a new entry by compiling into a staging directory which
+   * is then moved into the store
+   *
+   * @param key The key of the entry
+   * @param compile Compiles into the provided directory, returning true on success
+   *
+   * @return Some(lease) on the new entry if compilation succeeded, otherwise None
+   */
+  def store(key: String)(compile: JFile => Boolean) : Option[CompilationLease] = {
+    val staging = new JFile(root, s"$key.${System.nanoTime}$StagingSuffix")
+    staging.mkdirs()
+
+    try {
+      if(!compile(staging)) {
+        None
+      } else {
+        val result = synchronized {
+          val directory = new JFile(root, key)
+          //locked before the entry is visible, so that no other process can evict it before it is leased
+          lockShared(key)
+          try {
+            entries.get(key) match {
+              case Some(entry) if(entry.directory.isDirectory) =>
+                //another build has already stored the same compilation
+                entry.lastAccess = System.currentTimeMillis
+              case existing =>
+                existing.foreach(_ => removed(key))
+                if(directory.exists) {
+                  new FilePath(directory).deleteRecursive()
+                }
+                if(!staging.renameTo(directory)) {
+                  throw new IOException(s"Unable to store compilation in: $directory")
+                }
+                val stored = new Entry(directory, sizeOf(directory), System.currentTimeMillis)
+                entries(key) = stored
+                index.put(key, IndexRecord(stored.size, stored.lastAccess))
+            }
+          } catch {
+            case ioe: IOException =>
+              unlockShared(key)
+              throw ioe
+          }
+          Some(new CompilationLease(key, directory, this))
+        }
+        evict()
+        result
+      }
+    } finally {
+      if(staging.exists) {
+        new FilePath(staging).deleteRecursive()
+      }
+    }
+  }
+
+  /**
+   * @return the key of the entry that was most recently stored for the lineage, if any
+   */
+  def latest(lineage: String) : Option[String] = {
+    val file = new JFile(root, lineage + LineageSuffix)
+    try {
+      if(file.isFile) Some(new FilePath(file).readToString.trim).filter(_.nonEmpty) else None
+    } catch {
+      case e: IOException => None
+    }
+  }
+
+  /**
+   * Records the key of the entry that was most recently stored for the lineage
+   */
+  def updateLatest(lineage: String, key: String) {
+    root.mkdirs()
+    val staging = new JFile(root, s"$lineage.${System.nanoTime}$StagingSuffix")
+    new FilePath(staging).write(key, "UTF-8")
+    val file = new JFile(root, lineage + LineageSuffix)
+    //rename does not replace an existing file on every platform
+    if(!staging.renameTo(file)) {
+      file.delete()
+      if(!staging.renameTo(file)) {
+        staging.delete()
+      }
+    }
+  }
+
+  /**
+   * Removes entries which are older than the maximum age and then
+   * the least recently used entries until the store is within its
+   * maximum size. Entries that are leased, by this or any other
+   * process sharing the root, are never removed.
+   */
+  def evict() {
+    synchronized {
+      val expiry = System.currentTimeMillis - maxAge
+      val unused = entries.toList.filterNot { case (key, _) => leaseLocks.contains(key) }.sortBy(_._2.lastAccess)
+
+      val (expired, live) = unused.partition(_._2.lastAccess < expiry)
+      var total = size - expired.map(_._2.size).sum
+      val overQuota = live.takeWhile {
+        case (_, entry) =>
+          val over = total > maxSize
+          if(over) {
+            total -= entry.size
+          }
+          over
+      }
+
+      for((key, entry) <- expired ++ overQuota) {
+        tryLockExclusive(key) match {
+          case Some((raf, lock)) =>
+            try {
+              entries -= key
+              index.remove(key)
+              new FilePath(entry.directory).deleteRecursive()
+              leaseFile(key).delete()
+            } finally {
+              lock.release()
+              raf.close()
+            }
+          case None =>
+            //leased by another process
+        }
+      }
+
+      if(index.needsCompaction(entries.size)) {
+        index.compact(records, key => new JFile(root, key).isDirectory)
+      }
+    }
+  }
+
+  private[executer] def release(key: String) {
+    synchronized {
+      unlockShared(key)
+      entries.get(key) match {
+        case Some(entry) =>
+          entry.lastAccess = System.currentTimeMillis
+          index.touch(key, entry.lastAccess)
+        case None =>
+      }
+    }
+    evict()
+  }
+
+  /**
+   * Adopts an entry that was stored by another process
+   * sharing the same root
+   */
+  private def adopt(key: String) : Option[CompilationLease] = {
+    val directory = new JFile(root, key)
+    if(directory.isDirectory) {
+      val entry = new Entry(directory, sizeOf(directory), System.currentTimeMillis)
+      entries(key) = entry
+      index.put(key, IndexRecord(entry.size, entry.lastAccess))
+      lease(key, entry)
+    } else {
+      None
+    }
+  }
+
+  /**
+   * @return Some(lease) on the entry, or None if another process evicted it before it could be locked
+   */
+  private def lease(key: String, entry: Entry) : Option[CompilationLease] = {
+    lockShared(key)
+    if(entry.directory.isDirectory) {
+      entry.lastAccess = System.currentTimeMillis
+      Some(new CompilationLease(key, entry.directory, this))
+    } else {
+      unlockShared(key)
+      removed(key)
+      None
+    }
+  }
+
+  private def removed(key: String) {
+    entries -= key
+    index.remove(key)
+  }
+
+  private def leaseFile(key: String) = new JFile(root, key + LeaseSuffix)
+
+  /**
+   * Takes the shared lock on the lease file of an entry for another user
+   * in this JVM. The lock is held on behalf of the whole JVM, so only
+   * whilst this JVM has users of the entry.
+   *
+   * Another process only holds the exclusive lock whilst it evicts the
+   * entry, so rather than blocking on it whilst holding the monitor of the
+   * store, the lock is retried whilst waiting on the monitor, which lets
+   * other lookups proceed. Another thread may lease the entry meanwhile.
+   */
+  private def lockShared(key: String) {
+    val deadline = System.currentTimeMillis + LeaseLockTimeout
+    while(!leaseLocks.contains(key)) {
+      val raf = new RandomAccessFile(leaseFile(key), "rw")
+      val lock = try {
+        Option(raf.getChannel.tryLock(0, Long.MaxValue, true))
+      } catch {
+        case ioe: IOException =>
+          raf.close()
+          throw ioe
+        case ofle: OverlappingFileLockException =>
+          raf.close()
+          throw new IOException(s"The lease file of $key is already locked by this JVM", ofle)
+      }
+      lock match {
+        case Some(lock) =>
+          leaseLocks(key) = new LeaseLock(raf, lock)
+        case None =>
+          raf.close()
+          if(System.currentTimeMillis > deadline) {
+            throw new IOException(s"Timed out waiting for another process to release the lease file of $key")
+          }
+          wait(LeaseLockRetryInterval)
+      }
+    }
+    leaseLocks(key).users += 1
+  }
+
+  /**
+   * Releases a user of the shared lock on the lease file of an entry,
+   * the lock is released when this JVM has no further users of the entry
+   */
+  private def unlockShared(key: String) {
+    for(leaseLock <- leaseLocks.get(key)) {
+      leaseLock.users -= 1
+      if(leaseLock.users == 0) {
+        leaseLocks -= key
+        try {
+          leaseLock.lock.release()
+        } finally {
+          leaseLock.raf.close()
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the exclusive lock on the lease file of an entry, or None if another process has leased it
+   */
+  private def tryLockExclusive(key: String) : Option[(RandomAccessFile, FileLock)] = {
+    val raf = new RandomAccessFile(leaseFile(key), "rw")
+    val lock = try {
+      Option(raf.getChannel.tryLock(0, Long.MaxValue, false))
+    } catch {
+      case ioe: IOException =>
+        None
+    }
+    if(lock.isEmpty) {
+      raf.close()
+    }
+    lock.map((raf, _))
+  }
+
+  private def records : Map[String, IndexRecord] = {
+    entries.map { case (key, entry) => (key, IndexRecord(entry.size, entry.lastAccess)) }.toMap
+  }
+
+  /**
+   * Loads the entries from the index when the store is first used. If
+   * there is no usable index then the entries are found by scanning
+   * the root, and a new index is written.
+   *
+   * Any staging directories left behind by an earlier crash are removed.
+   */
+  private def open() : mutable.Map[String, Entry] = {
+    root.mkdirs()
+    val children = Option(root.listFiles).getOrElse(Array.empty[JFile]).filter(child => child.isDirectory && child.getName != LocksDirectory)
+    for(staging <- children if(staging.getName.endsWith(StagingSuffix))) {
+      new FilePath(staging).deleteRecursive()
+    }
+
+    val found = mutable.Map.empty[String, Entry]
+    index.load() match {
+      case Some(indexed) =>
+        for((key, record) <- indexed) {
+          found(key) = new Entry(new JFile(root, key), record.size, record.lastAccess)
+        }
+        //entries which were moved into the store but not indexed before a crash
+        for(directory <- children if(!directory.getName.endsWith(StagingSuffix) && !found.contains(directory.getName))) {
+          val entry = new Entry(directory, sizeOf(directory), directory.lastModified)
+          found(directory.getName) = entry
+          index.put(directory.getName, IndexRecord(entry.size, entry.lastAccess))
+        }
+        if(index.needsCompaction(found.size)) {
+          index.compact(found.map { case (key, entry) => (key, IndexRecord(entry.size, entry.lastAccess)) }.toMap, key => new JFile(root, key).isDirectory)
+        }
+
+      case None =>
+        for(directory <- children if(!directory.getName.endsWith(StagingSuffix))) {
+          found(directory.getName) = new Entry(directory, sizeOf(directory), directory.lastModified)
+        }
+        index.compact(found.map { case (key, entry) => (key, IndexRecord(entry.size, entry.lastAccess)) }.toMap)
+    }
+    found
+  }
+
+  private def sizeOf(file: JFile) : Long = {
+    if(file.isDirectory) {
+      Option(file.listFiles).getOrElse(Array.empty[JFile]).map(sizeOf).sum
+    } else {
+      file.length
+    }
+  }
+}
+
+/**
+ * The store of compiled output may be configured through the system properties:
+ *   hudson.plugins.scala.executer.CompilationStore.root
+ *   hudson.plugins.scala.executer.CompilationStore.maxSize (bytes)
+ *   hudson.plugins.scala.executer.CompilationStore.maxAge (milliseconds)
+ *
+ * Setting the root allows the store to be placed on fast local disk or tmpfs,
+ * by default it is held in $JENKINS_HOME/scala-plugin/compilations
+ */
+object CompilationStore {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.CompilationStore"
+
+  val maxSize: Long = java.lang.Long.getLong(s"$PropertyPrefix.maxSize", 512l * 1024 * 1024)
+
+  val maxAge: Long = java.lang.Long.getLong(s"$PropertyPrefix.maxAge", TimeUnit.DAYS.toMillis(30))
+
+  /**
+   * Location of the store relative to the root of a node
+   */
+  val NodePath = "scala-plugin/compilations"
+
+  private val stores = mutable.Map.empty[JFile, CompilationStore]
+
+  /**
+   * The store used by the controller
+   */
+  lazy val default : CompilationStore = {
+    val root = Option(System.getProperty(s"$PropertyPrefix.root")) match {
+      case Some(configuredRoot) => new JFile(configuredRoot)
+      case None => new JFile(Jenkins.getInstance.getRootDir, NodePath)
+    }
+    at(root)
+  }
+
+  /**
+   * Gets the store rooted at a directory, there is only
+   * ever one store for each root within a JVM
+   */
+  def at(root: JFile) : CompilationStore = synchronized {
+    stores.getOrElseUpdate(root.getAbsoluteFile, new CompilationStore(root.getAbsoluteFile, maxSize, maxAge))
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import scala.collection.mutable
+
+/**
+ * Tracks the use of the resident compile daemon (fsc) on each node.
+ *
+ * When the compile daemon is enabled the scala runner compiles scripts
+ * in a long-lived JVM on the node, rather than starting a cold compiler
+ * for every build. The daemon already discards its compiler when its
+ * heap fills up, here we additionally recycle it after a number of runs
+ * so that it does not grow without bound.
+ *
+ * Each daemon is identified by its node and its fsc executable, as each
+ * Scala installation on a node has its own daemon. A daemon is only
+ * recycled when no other build is using it, and builds which start whilst
+ * it is being recycled wait for the recycling to finish. If the daemon is
+ * busy when it is due then it is recycled by the next run that finds it idle.
+ *
+ * The number of runs may be set through the system property:
+ *   hudson.plugins.scala.executer.CompileDaemons.maxRuns
+ */
+object CompileDaemons {
+
+  val maxRuns: Int = Integer.getInteger("hudson.plugins.scala.executer.CompileDaemons.maxRuns", 100)
+
+  private val runs = mutable.Map.empty[String, Int]
+  private val active = mutable.Map.empty[String, Int]
+  private val recycling = mutable.Set.empty[String]
+
+  /**
+   * Records a run which uses a daemon, recycling the daemon first if it
+   * has been used for too many runs and no other build is using it
+   *
+   * @param nodeName The name of the node that the run is on
+   * @param fsc The fsc executable of the daemon on the node
+   * @param recycle Shuts down the daemon
+   * @param f The run
+   */
+  def withRun[T](nodeName: String, fsc: String)(recycle: => Unit)(f: => T) : T = {
+    val daemon = Seq(nodeName, fsc).mkString("\u0000")
+    val mustRecycle = synchronized {
+      while(recycling.contains(daemon)) {
+        wait()
+      }
+      val count = runs.getOrElse(daemon, 0) + 1
+      val idle = active.getOrElse(daemon, 0) == 0
+      val recycle = count > maxRuns && idle
+      runs(daemon) = if(recycle) 1 else count
+      if(recycle) {
+        recycling += daemon
+      }
+      active(daemon) = active.getOrElse(daemon, 0) + 1
+      recycle
+    }
+
+    try {
+      if(mustRecycle) {
+        try {
+          recycle
+        } finally {
+          synchronized {
+            recycling -= daemon
+            notifyAll()
+          }
+        }
+      }
+      f
+    } finally {
+      synchronized {
+        active.get(daemon) match {
+          case Some(1) => active -= daemon
+          case Some(count) => active(daemon) = count - 1
+          case None =>
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the fsc executable that sits alongside the scala executable
+   */
+  def fscExecutable(scalaExecutable: String) : String = siblingExecutable(scalaExecutable, "fsc")
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{File => JFile}
+import java.lang.management.ManagementFactory
+import java.util.{ArrayList => JArrayList, List => JList}
+import scala.beans.BeanProperty
+import scala.collection.mutable
+import scala.tools.nsc.Settings
+import scala.tools.nsc.reporters.Reporter
+import scala.tools.nsc.typechecker.Analyzer
+
+/**
+ * The time and allocation of a compiler phase
+ *
+ * @param phase The name of the phase
+ * @param millis The wall time of the phase in milliseconds
+ * @param allocatedBytes The bytes allocated by the compiling thread during the phase, or -1 if not supported by the JVM
+ */
+@SerialVersionUID(1l)
+class CompilerPhaseProfile(@BeanProperty val phase: String, @BeanProperty val millis: Long, @BeanProperty val allocatedBytes: Long) extends Serializable
+
+/**
+ * The time of an implicit search or a macro expansion
+ *
+ * @param description What was searched for or expanded
+ * @param position The source position
+ * @param micros The wall time in microseconds, including any nested searches or expansions
+ */
+@SerialVersionUID(1l)
+class TypecheckProfile(@BeanProperty val description: String, @BeanProperty val position: String, @BeanProperty val micros: Long) extends Serializable
+
+/**
+ * The profile of a compilation of a script
+ */
+@SerialVersionUID(1l)
+class CompileProfile extends Serializable {
+  @BeanProperty val phases : JList[CompilerPhaseProfile] = new JArrayList[CompilerPhaseProfile]
+  @BeanProperty var implicitSearchCount = 0
+  @BeanProperty var implicitSearchMicros = 0l
+  @BeanProperty val slowestImplicitSearches : JList[TypecheckProfile] = new JArrayList[TypecheckProfile]
+  @BeanProperty var macroExpansionCount = 0
+  @BeanProperty var macroExpansionMicros = 0l
+  @BeanProperty val slowestMacroExpansions : JList[TypecheckProfile] = new JArrayList[TypecheckProfile]
+  @BeanProperty var sourceFileCount = 0
+  @BeanProperty var classFileCount = 0
+
+  /**
+   * @return the wall time of all phases in milliseconds
+   */
+  def getTotalMillis : Long = {
+    var total = 0l
+    for(i <- 0 until phases.size) {
+      total += phases.get(i).millis
+    }
+    total
+  }
+}
+
+/**
+ * Requests that the compilation of a script is profiled,
+ * and holds the profile once the script has been compiled.
+ *
+ * Profilers are serializable, so that a script compiled
+ * on an agent can return its profile to the controller.
+ */
+@SerialVersionUID(1l)
+class CompileProfiler extends Serializable {
+
+  @volatile private var profile: Option[CompileProfile] = None
+
+  /**
+   * @return the profile, or null if the script has not been compiled
+   */
+  def getProfile : CompileProfile = profile.orNull
+
+  private[executer] def setProfile(profile: CompileProfile) {
+    this.profile = Option(profile)
+  }
+}
+
+object CompileProfiler {
+
+  /**
+   * The number of the slowest implicit searches
+   * and macro expansions kept in a profile
+   */
+  val slowest: Int = Integer.getInteger(classOf[CompileProfiler].getName + ".slowest", 20)
+}
+
+/**
+ * Records a profile while a ProfilingGlobal compiles
+ */
+private[executer] class CompileProfileRecorder {
+
+  val profile = new CompileProfile
+
+  private val threads = ManagementFactory.getThreadMXBean match {
+    case threads: com.sun.management.ThreadMXBean if threads.isThreadAllocatedMemorySupported =>
+      if(!threads.isThreadAllocatedMemoryEnabled) {
+        threads.setThreadAllocatedMemoryEnabled(true)
+      }
+      Some(threads)
+    case _ =>
+      None
+  }
+
+  private val slowestImplicitSearches = mutable.PriorityQueue.empty[TypecheckProfile](Ordering.by[TypecheckProfile, Long](-_.micros))
+  private val slowestMacroExpansions = mutable.PriorityQueue.empty[TypecheckProfile](Ordering.by[TypecheckProfile, Long](-_.micros))
+  private var implicitDepth = 0
+  private var macroDepth = 0
+
+  private var phaseStart = System.nanoTime
+  private var phaseAllocated = allocatedBytes
+
+  private def allocatedBytes : Long = threads.map(_.getThreadAllocatedBytes(Thread.currentThread.getId)).getOrElse(-1l)
+
+  /**
+   * Records the end of a compiler phase,
+   * and the start of the next
+   */
+  def phaseCompleted(phase: String) {
+    val now = System.nanoTime
+    val allocated = allocatedBytes
+    val phaseAllocatedBytes = if(allocated < 0) -1l else allocated - phaseAllocated
+    profile.phases.add(new CompilerPhaseProfile(phase, PhaseTimings.millisSince(phaseStart), phaseAllocatedBytes))
+    phaseStart = now
+    phaseAllocated = allocated
+  }
+
+  def implicitSearch[T](description: => String, position: => String)(search: => T) : T = {
+    implicitDepth += 1
+    val start = System.nanoTime
+    try {
+      search
+    } finally {
+      implicitDepth -= 1
+      val micros = (System.nanoTime - start) / 1000
+      profile.implicitSearchCount += 1
+      //nested searches are already included in the time of the outer search
+      if(implicitDepth == 0) {
+        profile.implicitSearchMicros += micros
+      }
+      keepSlowest(slowestImplicitSearches, new TypecheckProfile(description, position, micros))
+    }
+  }
+
+  def macroExpansion[T](description: => String, position: => String)(expansion: => T) : T = {
+    macroDepth += 1
+    val start = System.nanoTime
+    try {
+      expansion
+    } finally {
+      macroDepth -= 1
+      val micros = (System.nanoTime - start) / 1000
+      profile.macroExpansionCount += 1
+      if(macroDepth == 0) {
+        profile.macroExpansionMicros += micros
+      }
+      keepSlowest(slowestMacroExpansions, new TypecheckProfile(description, position, micros))
+    }
+  }
+
+  private def keepSlowest(slowest: mutable.PriorityQueue[TypecheckProfile], candidate: TypecheckProfile) {
+    //the head of the queue is the fastest of the slowest
+    if(slowest.size < CompileProfiler.slowest) {
+      slowest.enqueue(candidate)
+    } else if(slowest.head.micros < candidate.micros) {
+      slowest.dequeue()
+      slowest.enqueue(candidate)
+    }
+  }
+
+  /**
+   * Completes the profile
+   *
+   * @param sourceFileCount The number of source files that were compiled
+   * @param outputDirectory The directory that the classes were written to
+   */
+  def complete(sourceFileCount: Int, outputDirectory: JFile) : CompileProfile = {
+    for(search <- slowestImplicitSearches.toList.sortBy(-_.micros)) {
+      profile.slowestImplicitSearches.add(search)
+    }
+    for(expansion <- slowestMacroExpansions.toList.sortBy(-_.micros)) {
+      profile.slowestMacroExpansions.add(expansion)
+    }
+    profile.sourceFileCount = sourceFileCount
+    profile.classFileCount = countClassFiles(outputDirectory)
+    profile
+  }
+
+  private def countClassFiles(file: JFile) : Int = {
+    Option(file.listFiles).map(_.map {
+      child =>
+        if(child.isDirectory) {
+          countClassFiles(child)
+        } else if(child.getName.endsWith(".class")) {
+          1
+        } else {
+          0
+        }
+    }.sum).getOrElse(0)
+  }
+}
+
+/**
+ * A compiler which records the time of each implicit search
+ * and macro expansion of the typer, while a recorder is set.
+ *
+ * Profiling compilers are pooled apart from other compilers.
+ */
+class ProfilingGlobal(settings: Settings, reporter: Reporter, parent: ClassLoader) extends AnalyzingGlobal(settings, reporter, parent) {
+
+  @volatile private[executer] var recorder: Option[CompileProfileRecorder] = None
+
+  override lazy val analyzer = new { val global: ProfilingGlobal.this.type = ProfilingGlobal.this } with Analyzer {
+
+    override def inferImplicit(tree: Tree, pt: Type, reportAmbiguous: Boolean, isView: Boolean, context: Context, saveAmbiguousDivergent: Boolean, pos: Position) : SearchResult = {
+      def search = super.inferImplicit(tree, pt, reportAmbiguous, isView, context, saveAmbiguousDivergent, pos)
+      recorder match {
+        case Some(recorder) =>
+          recorder.implicitSearch(if(isView) s"view to $pt" else pt.toString, describe(pos))(search)
+        case None =>
+          search
+      }
+    }
+
+    override def macroExpand(typer: Typer, expandee: Tree, mode: Int, pt: Type) : Tree = {
+      def expand = super.macroExpand(typer, expandee, mode, pt)
+      recorder match {
+        case Some(recorder) =>
+          recorder.macroExpansion(Option(expandee.symbol).map(_.fullName).getOrElse(expandee.toString), describe(expandee.pos))(expand)
+        case None =>
+          expand
+      }
+    }
+  }
+
+  private def describe(pos: Position) : String = {
+    if(pos.isDefined) s"${pos.source.file.name}:${pos.line}" else ""
+  }
+}
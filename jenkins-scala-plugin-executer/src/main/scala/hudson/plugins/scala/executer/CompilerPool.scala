@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{File => JFile}
+import java.lang.ref.SoftReference
+import java.util.WeakHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.tools.nsc.Settings
+import scala.tools.nsc.reporters.Reporter
+
+/**
+ * A compiler that is held by the CompilerPool
+ *
+ * @param key The key that the compiler was pooled under
+ * @param parent The classloader that the compiler resolves classes from
+ * @param compiler The compiler instance
+ */
+class PooledCompiler private[executer] (val key: String, private[executer] val parent: ClassLoader, val compiler: AnalyzingGlobal) {
+  private[executer] var runs = 0
+  private[executer] var lastUsed = System.currentTimeMillis
+
+  /**
+   * @return true if the compiler has already been used
+   *         for a previous compilation
+   */
+  def isWarm = runs > 0
+}
+
+/**
+ * A pool of long-lived compiler instances.
+ *
+ * Creating a ReflectGlobal means building a new symbol table and
+ * scanning the whole classpath, so rather than throwing that away
+ * after every build we keep the compiler and re-use it for the next
+ * Run, in the same way that the resident compiler (fsc) does.
+ *
+ * Compilers are keyed by their parent classloader, and then by their
+ * classpath, the fingerprints of its entries, and settings, as none of
+ * them can be changed once a compiler has been initialised. Only per-run
+ * settings (the output directory and script name) may differ between the
+ * users of a pooled compiler.
+ *
+ * The parent classloaders are only weakly held by the keys of the pool,
+ * and the idle compilers, which refer to their parent, are only softly
+ * held, so a parent, such as that of a plugin which has since been
+ * updated, may be released before its idle compilers have expired.
+ *
+ * The pool may be tuned through the system properties:
+ *   hudson.plugins.scala.executer.CompilerPool.maxIdle
+ *   hudson.plugins.scala.executer.CompilerPool.maxIdlePerKey
+ *   hudson.plugins.scala.executer.CompilerPool.idleTimeout (milliseconds)
+ *   hudson.plugins.scala.executer.CompilerPool.maxRuns
+ */
+object CompilerPool {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.CompilerPool"
+
+  /**
+   * The maximum number of idle compilers held across all keys
+   */
+  val maxIdle: Int = Integer.getInteger(s"$PropertyPrefix.maxIdle", 4)
+
+  /**
+   * The maximum number of idle compilers held for any one key
+   */
+  val maxIdlePerKey: Int = Integer.getInteger(s"$PropertyPrefix.maxIdlePerKey", 2)
+
+  /**
+   * Idle compilers which have not been used for this
+   * number of milliseconds are discarded
+   */
+  val idleTimeout: Long = java.lang.Long.getLong(s"$PropertyPrefix.idleTimeout", TimeUnit.MINUTES.toMillis(10))
+
+  /**
+   * Compilers are discarded after this many runs, as each
+   * run leaves its symbols behind in the symbol table
+   */
+  val maxRuns: Int = Integer.getInteger(s"$PropertyPrefix.maxRuns", 50)
+
+  //the idle compilers of each parent classloader, by the key of their settings
+  private val idle = new WeakHashMap[ClassLoader, mutable.Map[String, List[SoftReference[PooledCompiler]]]]
+
+  private val created = new AtomicLong
+  private val reused = new AtomicLong
+
+  /**
+   * @return the number of compilers that have been created by the pool
+   */
+  def createdCount = created.get
+
+  /**
+   * @return the number of times that a warm compiler was re-used
+   */
+  def reusedCount = reused.get
+
+  /**
+   * @return the number of idle compilers currently held by the pool
+   */
+  def idleCount : Int = synchronized {
+    idle.values.asScala.map(_.values.map(live(_).size).sum).sum
+  }
+
+  /**
+   * Checks out a compiler for the settings, calls `f` with it
+   * and then returns the compiler to the pool.
+   *
+   * A compiler whose run reported errors or threw an exception
+   * is discarded rather than returned, as its symbol table may
+   * be left in an inconsistent state.
+   *
+   * @param settings The settings to compile with
+   * @param reporter The reporter to use for this compilation
+   * @param parent The classloader to resolve classes that are not on the classpath
+   * @param profiling true for a ProfilingGlobal
+   * @param discard true if the compiler should not be returned to the pool,
+   *                e.g. when its classpath holds classes that are about to change
+   */
+  def withCompiler[T](settings: Settings, reporter: Reporter, parent: ClassLoader, profiling: Boolean = false, discard: Boolean = false)(f: PooledCompiler => T) : T = {
+    val pooledKey = key(settings, profiling)
+    val pooled = checkout(parent, pooledKey) match {
+      case Some(warm) =>
+        reused.incrementAndGet
+        warm
+      case None =>
+        created.incrementAndGet
+        val compiler = if(profiling) new ProfilingGlobal(settings, reporter, parent) else new AnalyzingGlobal(settings, reporter, parent)
+        new PooledCompiler(pooledKey, parent, compiler)
+    }
+
+    //per-run state
+    pooled.compiler.currentSettings = settings
+    pooled.compiler.reporter = reporter
+
+    var reusable = false
+    try {
+      val result = f(pooled)
+      reusable = !discard && !reporter.hasErrors
+      result
+    } finally {
+      pooled.runs += 1
+      if(reusable && pooled.runs < maxRuns) {
+        checkin(pooled)
+      }
+    }
+  }
+
+  /**
+   * Discards all of the idle compilers
+   */
+  def clear() {
+    synchronized {
+      idle.clear()
+    }
+  }
+
+  /**
+   * Calculates the pool key for the settings, the output
+   * directory and script name are excluded as they are set
+   * per run. A compiler reads the classpath into its symbol table
+   * once, so the key covers the fingerprint of each entry.
+   */
+  private[executer] def key(settings: Settings, profiling: Boolean) : String = {
+    val fingerprints = settings.classpath.value.split(JFile.pathSeparator).filter(_.nonEmpty).map(entry => CompilationCache.fingerprint(new JFile(entry))).toList
+    (profiling.toString :: settings.classpath.value :: settings.bootclasspath.value :: fingerprints ++ compilerArguments(settings)).mkString("\u0000")
+  }
+
+  /**
+   * @return the user set compiler arguments, excluding those
+   *         which are set per run
+   */
+  private[executer] def compilerArguments(settings: Settings) : List[String] = {
+    val perRunSettings = Set[AnyRef](settings.outdir, settings.script)
+    settings.userSetSettings.toList.filterNot(perRunSettings.contains).sortBy(_.name).flatMap(_.unparse)
+  }
+
+  private def checkout(parent: ClassLoader, key: String) : Option[PooledCompiler] = synchronized {
+    evictExpired()
+    Option(idle.get(parent)).flatMap {
+      forParent =>
+        val compilers = live(forParent.getOrElse(key, Nil))
+        update(parent, forParent, key, compilers.drop(1))
+        compilers.headOption
+    }
+  }
+
+  private def checkin(pooled: PooledCompiler) {
+    synchronized {
+      pooled.lastUsed = System.currentTimeMillis
+      val forParent = Option(idle.get(pooled.parent)).getOrElse(mutable.Map.empty[String, List[SoftReference[PooledCompiler]]])
+      idle.put(pooled.parent, forParent)
+      val forKey = pooled :: live(forParent.getOrElse(pooled.key, Nil))
+      update(pooled.parent, forParent, pooled.key, forKey.take(maxIdlePerKey))
+
+      //enforce the overall limit by discarding the least recently used
+      while(idleCount > maxIdle) {
+        val oldest = idle.values.asScala.flatMap(_.values.flatMap(live(_).lastOption)).minBy(_.lastUsed)
+        val oldestForParent = idle.get(oldest.parent)
+        update(oldest.parent, oldestForParent, oldest.key, live(oldestForParent(oldest.key)).filterNot(_ eq oldest))
+      }
+
+      evictExpired()
+    }
+  }
+
+  /**
+   * Sets the idle compilers of a key, removing
+   * the key, or the parent, when none remain
+   */
+  private def update(parent: ClassLoader, forParent: mutable.Map[String, List[SoftReference[PooledCompiler]]], key: String, compilers: List[PooledCompiler]) {
+    if(compilers.isEmpty) {
+      forParent -= key
+      if(forParent.isEmpty) {
+        idle.remove(parent)
+      }
+    } else {
+      forParent(key) = compilers.map(new SoftReference(_))
+    }
+  }
+
+  /**
+   * @return the idle compilers which the garbage collector has not reclaimed
+   */
+  private def live(compilers: List[SoftReference[PooledCompiler]]) : List[PooledCompiler] = compilers.flatMap(compiler => Option(compiler.get))
+
+  private def evictExpired() {
+    val expiry = System.currentTimeMillis - idleTimeout
+    for((parent, forParent) <- idle.asScala.toList; (k, compilers) <- forParent.toList) {
+      update(parent, forParent, k, live(compilers).filter(_.lastUsed >= expiry))
+    }
+  }
+}
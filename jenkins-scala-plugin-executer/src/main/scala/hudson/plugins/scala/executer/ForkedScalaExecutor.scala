@@ -31,13 +31,17 @@ package hudson.plugins.scala.executer
 
 import hudson.model.{BuildListener, AbstractBuild}
 import hudson.{EnvVars, FilePath, Launcher}
+import java.io.{File => JFile}
 
 class ForkedScalaExecutor extends ScalaExecuter {
 
-  def execute(build: AbstractBuild[_, _], launcher: Launcher, listener: BuildListener, scalaHome: String, scalaExecutable: String, script: FilePath, scalaParameters: String, classpath: String, scriptParameters: String, debug: Boolean, suspend: Boolean, jdwpPort: Integer) : Boolean = {
+  def execute(build: AbstractBuild[_, _], launcher: Launcher, listener: BuildListener, scalaHome: String, scalaExecutable: String, script: FilePath, sources: Array[FilePath], scalaParameters: String, classpath: String, scriptParameters: String, debug: Boolean, suspend: Boolean, jdwpPort: Integer, compileDaemon: Boolean, precompile: Boolean, classDataSharing: Boolean, timings: PhaseTimings) : Boolean = {
 
-    //TODO add checkbox options for "-nocompdaemon" and "-savecompiled" make nocompdaemon on by default
-    def scalaCmdParameters : Option[String] = Some(("-nocompdaemon" :: nonEmptyString(scalaParameters).toList).mkString(" ").trim())
+    //TODO add checkbox option for "-savecompiled"
+    def scalaCmdParameters : Option[String] = {
+      val compileDaemonParameter = if(compileDaemon) None else Some("-nocompdaemon")
+      Some((compileDaemonParameter.toList ++ nonEmptyString(scalaParameters).toList).mkString(" ").trim()).filter(_.nonEmpty)
+    }
 
     def javaDebugParameters : Option[String] = {
       def booleanToChar(boolean: Boolean) = if(boolean) 'y' else 'n'
@@ -54,12 +58,207 @@ class ForkedScalaExecutor extends ScalaExecuter {
       cmdParts.flatten.mkString(" ")
     }
 
+    def classpathSeparator = if(launcher.isUnix) ":" else ";"
+
+    def userClasspathEntries(workspace: FilePath) : Seq[FilePath] = {
+      nonEmptyString(classpath).toSeq.flatMap(_.split(classpathSeparator)).map(classpathEntry => new FilePath(workspace, classpathEntry))
+    }
+
+    def scalaParameterList : Seq[String] = nonEmptyString(scalaParameters).toSeq.flatMap(_.trim.split("""\s+"""))
+
+    /**
+     * @return the scala-library jar of the Scala installation on the node
+     */
+    def scalaLibrary(workspace: FilePath) : Option[FilePath] = {
+      val fromExecutable = Option(new FilePath(workspace.getChannel, scalaExecutable).getParent).flatMap(bin => Option(bin.getParent))
+      val fromHome = nonEmptyString(scalaHome).map(home => new FilePath(workspace.getChannel, home))
+      (fromExecutable orElse fromHome).map(_.child("lib").child("scala-library.jar")).filter(_.exists)
+    }
+
+    def nodeRoot(workspace: FilePath) : FilePath = Option(build.getBuiltOn).flatMap(node => Option(node.getRootPath)).getOrElse(workspace)
+
+    /**
+     * Gets the precompiled jar for the script, from the cache on the node,
+     * the store on the controller, or by compiling it with scalac on the node
+     *
+     * @return Some((jar, objectName)) or None if the script could not be compiled
+     */
+    def precompiledJar(env: EnvVars, workspace: FilePath, script: FilePath, scalaLibrary: FilePath) : Option[(FilePath, String)] = {
+      val compilerParameters = PrecompiledScripts.compilerParameters(scalaParameterList)
+      val key = timings.time(PhaseTimings.Hashing) {
+        PrecompiledScripts.key(script, sources, userClasspathEntries(workspace), scalaLibrary, compilerParameters)
+      }
+      val objectName = PrecompiledScripts.scriptObjectName(key)
+
+      val nodeCache = nodeRoot(workspace).child(PrecompiledScripts.NodeCachePath)
+      nodeCache.mkdirs()
+      val jar = nodeCache.child(s"$key.jar")
+
+      //scalac only writes a jar if the output ends with .jar
+      def stagingJar = nodeCache.child(s"$key.${System.nanoTime}.tmp.jar")
+
+      def moveIntoCache(staging: FilePath) : Boolean = {
+        staging.renameTo(jar)
+        if(staging.exists) {
+          //another build on this node has already cached the jar
+          staging.delete()
+        }
+        jar.exists
+      }
+
+      val lookupStart = System.nanoTime
+      if(jar.exists) {
+        timings.record(PhaseTimings.CacheLookup, PhaseTimings.millisSince(lookupStart))
+        listener.getLogger.println(s"Using precompiled jar: ${jar.getRemote}")
+        Some((jar, objectName))
+      } else {
+        val lease = PrecompiledScripts.store.acquire(key)
+        timings.record(PhaseTimings.CacheLookup, PhaseTimings.millisSince(lookupStart))
+        lease match {
+          case Some(lease) =>
+            try {
+              listener.getLogger.println(s"Copying precompiled jar from controller to: ${jar.getRemote}")
+              timings.time(PhaseTimings.CacheLookup) {
+                val staging = stagingJar
+                new FilePath(new JFile(lease.directory, PrecompiledScripts.JarName)).copyTo(staging)
+                if(moveIntoCache(staging)) Some((jar, objectName)) else None
+              }
+            } finally {
+              lease.release()
+            }
+
+          case None =>
+            val staging = stagingJar
+            val compiled = timings.time(PhaseTimings.Compilation) {
+              compileJar(env, workspace, script, objectName, staging, compilerParameters)
+            }
+            if(compiled && moveIntoCache(staging)) {
+              //share the jar with other nodes through the controller
+              PrecompiledScripts.store.acquireOrStore(key) {
+                directory =>
+                  jar.copyTo(new FilePath(new JFile(directory, PrecompiledScripts.JarName)))
+                  true
+              }.foreach(_.release())
+              Some((jar, objectName))
+            } else {
+              if(staging.exists) {
+                staging.delete()
+              }
+              None
+            }
+        }
+      }
+    }
+
+    /**
+     * Compiles the script and any further source files into a jar with scalac.
+     *
+     * scalac can only compile a single file as a script, so when there are
+     * further source files the script is wrapped into an object first
+     *
+     * @return true if the jar was compiled
+     */
+    def compileJar(env: EnvVars, workspace: FilePath, script: FilePath, objectName: String, jar: FilePath, compilerParameters: Seq[String]) : Boolean = {
+      def compile(sourceParameters: Seq[String]) : Boolean = {
+        val scalac = siblingExecutable(scalaExecutable, "scalac")
+        val cmdParts = List(Some(scalac), Some(s"-d ${jar.getRemote}"), scalaClassPathParameter) ++ compilerParameters.map(Some(_)) ++ sourceParameters.map(Some(_))
+        val cmd = cmdParts.flatten.mkString(" ")
+        listener.getLogger.println("Scala compile command is: " + cmd)
+
+        launcher.launch().cmdAsSingleString(cmd).envs(env).stdout(listener).pwd(workspace).join() == 0
+      }
+
+      if(sources.isEmpty) {
+        compile(List(s"-Xscript $objectName", script.getRemote))
+      } else {
+        val wrappedDirectory = workspace.createTempDir("scala-script", "")
+        try {
+          //keeps the name of the script, so that compiler errors refer to it
+          val wrapped = wrappedDirectory.child(script.getName)
+          wrapped.write(ScriptWrapper.wrap(objectName, script.readToString), null)
+          compile(wrapped.getRemote +: sources.map(_.getRemote))
+        } finally {
+          wrappedDirectory.deleteRecursive()
+        }
+      }
+    }
+
+    def javaHome(env: EnvVars, workspace: FilePath) : Option[FilePath] = Option(env.get("JAVA_HOME")).map(javaHome => new FilePath(workspace.getChannel, javaHome))
+
+    def javaExecutable(env: EnvVars, workspace: FilePath) : String = {
+      javaHome(env, workspace).map(_.child("bin").child("java").getRemote).getOrElse("java")
+    }
+
+    /**
+     * @return the class data sharing archive of the Scala installation and JDK on the node, if any
+     */
+    def classDataSharingArchive(env: EnvVars, workspace: FilePath, scalaLibrary: FilePath) : Option[SharedArchive] = {
+      javaHome(env, workspace) match {
+        case Some(javaHome) =>
+          timings.time(PhaseTimings.ClassDataSharing) {
+            ClassDataSharing.archive(launcher, listener, env, workspace, nodeRoot(workspace), javaHome, scalaLibrary)
+          }
+        case None =>
+          listener.getLogger.println("[SCALA PLUGIN WARNING] Class data sharing requires JAVA_HOME to be set for the build, it will not be used")
+          None
+      }
+    }
+
+    def executePrecompiled(env: EnvVars, workspace: FilePath, script: FilePath, scalaLibrary: FilePath) : Boolean = {
+      precompiledJar(env, workspace, script, scalaLibrary) match {
+        case Some((jar, objectName)) =>
+          def booleanToChar(boolean: Boolean) = if(boolean) 'y' else 'n'
+          val jvmParameters = PrecompiledScripts.jvmParameters(scalaParameterList)
+          val debugParameters = if(debug) List(s"-Xdebug -Xrunjdwp:transport=dt_socket,server=y,suspend=${booleanToChar(suspend)},address=$jdwpPort") else Nil
+          val archive = if(classDataSharing) classDataSharingArchive(env, workspace, scalaLibrary) else None
+          val archiveParameters = archive.toList.flatMap(ClassDataSharing.jvmParameters)
+          //the classpath that an archive was dumped with must be a prefix of the classpath it is used with
+          val runtimeClasspath = if(archive.isDefined) List(scalaLibrary.getRemote, jar.getRemote) else List(jar.getRemote, scalaLibrary.getRemote)
+          val javaClasspath = (runtimeClasspath ++ nonEmptyString(classpath).toList).mkString(classpathSeparator)
+
+          val cmdParts = List(Some(javaExecutable(env, workspace))) ++ archiveParameters.map(Some(_)) ++ jvmParameters.map(Some(_)) ++ debugParameters.map(Some(_)) ++ List(Some(s"-cp $javaClasspath"), Some(objectName), nonEmptyString(scriptParameters))
+          val cmd = cmdParts.flatten.mkString(" ")
+          listener.getLogger.println("Java command is: " + cmd)
+
+          timings.time(PhaseTimings.Execution) {
+            LogPump.withLogPump(build, listener) {
+              output => launcher.launch().cmdAsSingleString(cmd).envs(env).stdout(output).pwd(workspace).join() == 0
+            }
+          }
+
+        case None =>
+          listener.fatalError("Compilation of Scala Script failed")
+          false
+      }
+    }
+
+    /**
+     * Runs `f` with the compile daemon on the node, shutting the daemon down first
+     * if it has been used for too many runs, the next run starts a fresh daemon
+     */
+    def withCompileDaemon[T](env: EnvVars, workspace: FilePath)(f: => T) : T = {
+      val nodeName = Option(build.getBuiltOn).map(_.getNodeName).getOrElse("")
+      val fsc = CompileDaemons.fscExecutable(scalaExecutable)
+      CompileDaemons.withRun(nodeName, fsc) {
+        listener.getLogger.println(s"Recycling compile daemon after ${CompileDaemons.maxRuns} runs: $fsc -shutdown")
+        launcher.launch().cmds(fsc, "-shutdown").envs(env).stdout(listener).pwd(workspace).join()
+      }(f)
+    }
+
     def executeScript(env: EnvVars, workspace: FilePath, script: FilePath) : Boolean = {
       val cmd = execCommand(script)
       //val shell = new Shell(scala_launch_cmd)
       listener.getLogger().println("Scala command is: " + cmd)
 
-      val result = launcher.launch().cmdAsSingleString(cmd).envs(env).stdout(listener).pwd(workspace).join()
+      //the forked scala runner compiles the script itself, so this is all recorded as execution
+      def launch() : Int = {
+        LogPump.withLogPump(build, listener) {
+          output => launcher.launch().cmdAsSingleString(cmd).envs(env).stdout(output).pwd(workspace).join()
+        }
+      }
+      val result = timings.time(PhaseTimings.Execution) {
+        if(compileDaemon) withCompileDaemon(env, workspace)(launch()) else launch()
+      }
       //val result = launcher.launch().cmds(cmd).envs(env).stdout(listener).pwd(workspace).join()
       //shell.perform(build, launcher, listener);
       result == 0
@@ -77,7 +276,27 @@ class ForkedScalaExecutor extends ScalaExecuter {
     val workspace = build.getWorkspace()
     Option(script) match {
       case Some(script) => {
-        executeScript(env, workspace, script)
+        //the scala runner can only run a single file, so a script with further source files is always precompiled,
+        //and class data sharing is only possible when the JVM is launched directly, so it also precompiles the script
+        val precompiledScalaLibrary = if(precompile || classDataSharing || sources.nonEmpty) {
+          val library = scalaLibrary(workspace)
+          if(library.isEmpty && sources.isEmpty) {
+            listener.getLogger.println("[SCALA PLUGIN WARNING] Could not find scala-library.jar of the Scala Installation, the script will not be precompiled")
+          }
+          library
+        } else {
+          None
+        }
+
+        precompiledScalaLibrary match {
+          case Some(library) =>
+            executePrecompiled(env, workspace, script, library)
+          case None if(sources.nonEmpty) =>
+            listener.fatalError("Could not find scala-library.jar of the Scala Installation, which is needed to run a script with multiple source files")
+            false
+          case None =>
+            executeScript(env, workspace, script)
+        }
       }
       case None => {
         listener.fatalError("Could not process Scala Script")
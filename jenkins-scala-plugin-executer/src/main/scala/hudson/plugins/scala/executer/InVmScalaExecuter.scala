@@ -29,18 +29,17 @@
  */
 package hudson.plugins.scala.executer
 
-import hudson.model.{BuildListener, AbstractBuild}
+import hudson.model.{AbstractBuild, BuildListener, TaskListener}
 import hudson.{FilePath, Launcher}
-import hudson.remoting.VirtualChannel
+import hudson.remoting.{Callable, VirtualChannel}
 import jenkins.model.{Jenkins}
-import java.io.{Closeable, File => JFile, IOException, ObjectInputStream, ObjectOutputStream, PrintWriter}
+import java.io.{ByteArrayInputStream, Closeable, File => JFile, FileInputStream, InputStream, IOException, PrintWriter}
 import java.net.URLClassLoader
-import java.util.concurrent.locks.{Lock, ReentrantReadWriteLock}
 import scala.Console
 import scala.tools.nsc.{CommonRunner, GenericRunnerSettings}
-import scala.tools.nsc.io.File
+import scala.reflect.internal.util.{BatchSourceFile, ScriptSourceFile}
+import scala.tools.nsc.io.{AbstractFile, VirtualDirectory, VirtualFile}
 import scala.tools.nsc.reporters.ConsoleReporter
-import scala.tools.reflect.ReflectGlobal
 
 
 trait InVmRunner extends CommonRunner {
@@ -68,228 +67,701 @@ class FilePathExtractor extends FilePath.FileCallable[JFile] {
   def invoke(f: JFile, channel: VirtualChannel) = f
 }
 
-class InVmScalaExecuter extends ScalaExecuter {
+/**
+ * The script that is compiled by an InVmScript
+ */
+sealed trait InVmScriptSource extends Serializable {
 
-  def execute(build: AbstractBuild[_, _], launcher: Launcher, listener: BuildListener, scalaHome: String, script: FilePath, classpath: String, scriptParameters: String) : Boolean = {
+  /**
+   * @return a stream of the content of the script
+   */
+  def open : InputStream
+}
 
-    lazy val workspace = build.getWorkspace
+/**
+ * A script held in a file
+ *
+ * @param path The path of the file
+ */
+case class InVmScriptFile(path: String) extends InVmScriptSource {
+  override def open = new FileInputStream(path)
+}
 
-    def errorFn(message: String) {
-      listener.fatalError(message)
-    }
+/**
+ * A script held in memory, which is compiled
+ * without ever being written to a file
+ *
+ * @param script The content of the script
+ */
+case class InVmInlineScript(script: String) extends InVmScriptSource {
+  override def open = new ByteArrayInputStream(script.getBytes("UTF-8"))
+}
+
+/**
+ * A script which is compiled with a pooled compiler,
+ * and then run within the current JVM
+ *
+ * @param listener Receives the output of the compiler and the script
+ * @param script The script to compile and run
+ * @param sourceFiles Further source files which are compiled together with the script
+ * @param classpath The user defined classpath
+ * @param scriptParameters The parameters to pass to the script
+ * @param unix true if the classpath entries are separated by ':' rather than ';'
+ * @param timings Records the time spent in each phase
+ * @param profiler Receives the profile of the compilation, if the compilation is to be profiled
+ * @param job The full name of the job, for the AdmissionControl
+ * @param priority The priority of the job in the AdmissionControl
+ * @param inMemory true to compile into memory and keep the classes in the BytecodeStore,
+ *                 rather than the CompilationStore, for scripts without further source files
+ * @param workspace The workspace that relative classpath entries are resolved against, if any
+ */
+class InVmScript(listener: TaskListener, script: InVmScriptSource, sourceFiles: Seq[JFile], classpath: String, scriptParameters: String, unix: Boolean, timings: PhaseTimings = new PhaseTimings, profiler: Option[CompileProfiler] = None, job: String = "", priority: Int = 0, inMemory: Boolean = false, workspace: Option[JFile] = None) extends ScalaExecuter {
 
-    def jenkinsReporter(settings: GenericRunnerSettings) = new ConsoleReporter(settings, Console.in, new PrintWriter(listener.getLogger))
+  def errorFn(message: String) {
+    listener.fatalError(message)
+  }
 
-    /**
-     * @return the path to the directory containing the
-     *         compiled class files
-     */
-    def compile(settings: GenericRunnerSettings) : FilePath = {
-      val compilationDirectory = workspace.createTempDir("scala-plugin", ".compilation")
-      listener.getLogger.println(s"Using temporary directory for compilation: $compilationDirectory")
+  def jenkinsReporter(settings: GenericRunnerSettings) = new ConsoleReporter(settings, Console.in, new PrintWriter(listener.getLogger))
+
+  /**
+   * The identities of the further source files by their path, or None
+   * if two of them have the same name, in which case they can not be
+   * told apart between compilations and are never compiled incrementally
+   */
+  private lazy val sourceIds : Option[Map[String, String]] = {
+    val names = sourceFiles.map(_.getName)
+    if(names.distinct.size == names.size) {
+      Some(sourceFiles.map(sourceFile => (sourceFile.getPath, sourceFile.getName)).toMap)
+    } else {
+      None
+    }
+  }
 
-      val compilationDirectoryFile = compilationDirectory.act(new FilePathExtractor)
-      settings.outdir.value = compilationDirectoryFile.getAbsolutePath
+  /**
+   * The content hash of each of the further source files, by their identity
+   */
+  private lazy val contentHashes : Map[String, String] = {
+    sourceFiles.map(sourceFile => (sourceFile.getName, new FilePath(sourceFile).digest)).toMap
+  }
 
-      logProcess("compilation") {
-        val reporter = jenkinsReporter(settings)
-        val compiler = new ReflectGlobal(settings, reporter, Jenkins.getInstance.getPluginManager.uberClassLoader)
-        val run = new compiler.Run
+  /**
+   * Compiles the script into the output directory
+   *
+   * @param phase The phase that the time of the compilation is recorded as
+   *
+   * @return true if the script compiled without errors
+   */
+  def compile(settings: GenericRunnerSettings, outputDirectory: JFile, parent: ClassLoader, phase: String = PhaseTimings.Compilation) : Boolean = {
+    listener.getLogger.println(s"Using directory for compilation: $outputDirectory")
+
+    logProcess(phase) {
+      compileAll(settings, outputDirectory, parent)
+    }
+  }
 
-        val scriptFile = script.act(new FilePathExtractor)
+  /**
+   * Compiles the script into the output directory, reusing the classes
+   * of those further source files which are not affected by the changes
+   * since the previous compilation of the same lineage.
+   *
+   * The script itself is always compiled, as its object is named after
+   * the cache key. If there is no previous compilation, or the incremental
+   * compilation fails, then all of the source files are compiled.
+   *
+   * @param lineage The lineage of the compilation, see CompilationCache.lineage
+   *
+   * @return true if the script compiled without errors
+   */
+  def compileIncrementally(settings: GenericRunnerSettings, outputDirectory: JFile, parent: ClassLoader, store: CompilationStore, lineage: String) : Boolean = {
+    listener.getLogger.println(s"Using directory for compilation: $outputDirectory")
+
+    logProcess(PhaseTimings.Compilation) {
+      val previous = store.latest(lineage).flatMap(store.acquire) match {
+        case Some(lease) =>
+          try {
+            CompilationAnalysis.read(lease.directory).map {
+              analysis =>
+                listener.getLogger.println(s"Compiling incrementally from: ${lease.directory}")
+                (analysis, reuse(analysis, lease.directory, outputDirectory))
+            }
+          } finally {
+            lease.release()
+          }
+        case None =>
+          None
+      }
 
-        run.compile(List(scriptFile.getAbsolutePath))
+      previous match {
+        case Some((analysis, (reused, invalidated))) =>
+          recompile(settings, outputDirectory, parent, analysis, reused, invalidated) || {
+            listener.getLogger.println("Incremental compilation failed, compiling all source files")
+            new FilePath(outputDirectory).deleteContents()
+            compileAll(settings, outputDirectory, parent)
+          }
+        case None =>
+          compileAll(settings, outputDirectory, parent)
       }
+    }
+  }
 
-      compilationDirectory
+  /**
+   * Compiles the script and all of the further source files, and
+   * stores the analysis of the source files with the compilation
+   */
+  private def compileAll(settings: GenericRunnerSettings, outputDirectory: JFile, parent: ClassLoader) : Boolean = {
+    compileSources(settings, AbstractFile.getDirectory(outputDirectory), parent, true, sourceFiles, CompilationAnalysis.empty) match {
+      case Some(analysis) =>
+        if(analysis.units.nonEmpty) {
+          CompilationAnalysis.write(outputDirectory, analysis)
+        }
+        true
+      case None =>
+        false
     }
+  }
 
-    def execute(settings: GenericRunnerSettings, compilationDir: JFile, scriptParameters: Seq[String] = Seq.empty) : Boolean = {
-      val cp = File(settings.outdir.value).toURL +: settings.classpathURLs
+  /**
+   * Copies the classes of the previous compilation which are unaffected
+   * by the changes to the source files and the classpath
+   *
+   * @return the analysis of the reused source files, and the source files which must be recompiled
+   */
+  private def reuse(previous: CompilationAnalysis, previousDirectory: JFile, outputDirectory: JFile) : (CompilationAnalysis, Set[String]) = {
+    val fingerprints = userDefinedClasspathEntries.map(classpathEntry => (new JFile(classpathEntry).getAbsolutePath, CompilationCache.fingerprint(new JFile(classpathEntry)))).toMap
+    val removed = previous.units.keySet - CompilationAnalysis.ScriptUnit -- contentHashes.keySet
+    val changed = contentHashes.keySet.filterNot(source => previous.units.get(source).exists(_.contentHash == contentHashes(source)))
+    val classpathChanged = previous.units.values.filter(_.binaryDependencies.exists { case (classpathEntry, fingerprint) => !fingerprints.get(classpathEntry).exists(_ == fingerprint) }).map(_.source)
+
+    val invalidated = (changed ++ classpathChanged ++ previous.invalidatedBy(Map.empty, previous, removed)).filter(contentHashes.contains) + CompilationAnalysis.ScriptUnit
+    val reused = previous -- removed -- invalidated
+    for(unit <- reused.units.values; classFile <- unit.classFiles) {
+      new FilePath(new JFile(previousDirectory, classFile)).copyTo(new FilePath(new JFile(outputDirectory, classFile)))
+    }
+    (reused, invalidated)
+  }
 
-      //redirect stdout and stderr
-      Console.setOut(listener.getLogger)
-      Console.setErr(listener.getLogger)
+  /**
+   * Recompiles the invalidated source files, and then any source files
+   * which are invalidated by changes to the API of those, until no
+   * further source files are invalidated
+   *
+   * @param previous The analysis of the previous compilation
+   * @param reused The analysis of the source files whose classes were reused
+   * @param invalidated The source files to recompile
+   *
+   * @return true if the source files compiled without errors
+   */
+  private def recompile(settings: GenericRunnerSettings, outputDirectory: JFile, parent: ClassLoader, previous: CompilationAnalysis, reused: CompilationAnalysis, invalidated: Set[String]) : Boolean = {
+    var analysis = reused
+    var recompiled = Set.empty[String]
+    var toCompile = invalidated
+    var rounds = 0
+    var success = true
+    while(success && toCompile.nonEmpty) {
+      rounds += 1
+      if(rounds > CompilationAnalysis.maxRounds) {
+        listener.getLogger.println(s"Incremental compilation did not complete within ${CompilationAnalysis.maxRounds} rounds")
+        return false
+      }
+      listener.getLogger.println(s"Incremental compilation round $rounds: ${toCompile.toList.sorted.mkString(", ")}")
 
-      val runnerClasspath = new URLClassLoader(Array(File(compilationDir).toURL), Jenkins.getInstance.getPluginManager.uberClassLoader)
-      ObjectInVmRunner.runAndCatch(runnerClasspath, settings.script.value, scriptParameters) match {
-        case Left(ex) => {
-          ex.printStackTrace(listener.fatalError(ex.getMessage))
-          false
+      for(source <- toCompile; unit <- analysis.units.get(source); classFile <- unit.classFiles) {
+        new JFile(outputDirectory, classFile).delete()
+      }
+      analysis = analysis -- toCompile
+
+      //the compiler resolves classes through its classloader, so that must find the reused classes
+      val classLoader = new URLClassLoader(Array(outputDirectory.toURI.toURL), parent)
+      val compiled = try {
+        //the classes of the output directory are about to change, so the compiler is not pooled
+        compileSources(settings, AbstractFile.getDirectory(outputDirectory), classLoader, toCompile.contains(CompilationAnalysis.ScriptUnit), sourceFiles.filter(sourceFile => toCompile.contains(sourceFile.getName)), analysis, true)
+      } finally {
+        classLoader match {
+          case closeable: Closeable =>
+            closeable.close()
+          case _ =>
         }
-        case Right(result) =>
-          result
       }
-    }
 
-    def logProcess[T](processName: String)(process: => T): T = {
-      listener.getLogger.println(s"Starting $processName...")
-      val result = process //exec process
-      listener.getLogger.println(s"Complete $processName.")
+      compiled match {
+        case Some(compiled) =>
+          val changes = compiled.units.values.map(unit => (unit.source, previous.units.get(unit.source).map(_.changedNames(unit)).getOrElse(unit.nameHashes.keySet))).toMap
+          analysis = analysis ++ compiled
+          recompiled ++= toCompile
+          //source files of earlier rounds were compiled against the API from before these changes, so may be invalidated again
+          toCompile = analysis.invalidatedBy(changes, previous, Set.empty) -- toCompile
+        case None =>
+          success = false
+      }
+    }
 
-      result
+    if(success) {
+      CompilationAnalysis.write(outputDirectory, analysis)
+      listener.getLogger.println(s"Recompiled ${(recompiled - CompilationAnalysis.ScriptUnit).size} of ${sourceFiles.size} source files in $rounds rounds")
     }
+    success
+  }
+
+  /**
+   * Compiles the script and the selected further source files into the output directory
+   *
+   * @param output The output directory, which may be a VirtualDirectory for a script without further source files
+   * @param includeScript true if the script is to be compiled
+   * @param selected The further source files to compile
+   * @param previous The analysis of the classes already in the output directory
+   * @param discard true if the compiler should not be returned to the pool
+   *
+   * @return Some(analysis) of the compiled source files, or None if there were errors
+   */
+  private def compileSources(settings: GenericRunnerSettings, output: AbstractFile, parent: ClassLoader, includeScript: Boolean, selected: Seq[JFile], previous: CompilationAnalysis, discard: Boolean = false) : Option[CompilationAnalysis] = {
+    settings.outputDirs.setSingleOutput(output)
+    //null when compiling into memory
+    val outputDirectory = output.file
+
+    val reporter = jenkinsReporter(settings)
+    val analysis = CompilerPool.withCompiler(settings, reporter, parent, profiler.isDefined, discard) {
+      pooled =>
+        if(pooled.isWarm) {
+          listener.getLogger.println("Using warm compiler from pool")
+        }
+        val compiler = pooled.compiler
+
+        val scriptSource = script match {
+          case InVmScriptFile(path) =>
+            compiler.getSourceFile(path)
+          case InVmInlineScript(content) =>
+            //named after the script object, so that compiler messages refer to a stable name
+            ScriptSourceFile(new VirtualFile(settings.script.value + ".scala"), content.toCharArray)
+        }
 
-    /**
-     * Sets up the user defined classpath
-     */
-    def setupUserDefinedClasspath(settings: GenericRunnerSettings) {
-      nonEmptyString(classpath) match {
-        case Some(classpath) => {
-          val classpathEntries = if(launcher.isUnix) {
-            classpath.split(':')
-          } else {
-            classpath.split(';')
+        //the script and the further source files are compiled as one unit, only the script is wrapped as a script
+        val sources = (if(includeScript) List(scriptSource) else Nil) ++ selected.toList.map(sourceFile => new BatchSourceFile(AbstractFile.getFile(sourceFile)))
+
+        //a script without further source files is always compiled in full, so needs no analysis
+        val collector = sourceIds.filter(_ => sourceFiles.nonEmpty).map(new AnalysisCollector(_, outputDirectory, previous.classFileOwners, userDefinedClasspathEntries))
+        compiler.collector = collector
+        try {
+          compiler match {
+            case profiling: ProfilingGlobal if profiler.isDefined =>
+              val recorder = new CompileProfileRecorder
+              profiling.recorder = Some(recorder)
+              //the phase that has just completed is still the current phase when the run advances
+              val run = new compiler.Run {
+                override def advancePhase() {
+                  recorder.phaseCompleted(compiler.phase.name)
+                  super.advancePhase()
+                }
+              }
+              try {
+                run.compileSources(sources)
+              } finally {
+                profiling.recorder = None
+                val profile = recorder.complete(sources.size, outputDirectory)
+                logProfile(profile)
+                profiler.foreach(_.setProfile(profile))
+              }
+
+            case _ =>
+              val run = new compiler.Run
+              run.compileSources(sources)
           }
+        } finally {
+          compiler.collector = None
+        }
+
+        collector.map(_.complete(contentHashes)).getOrElse(CompilationAnalysis.empty)
+    }
+
+    if(reporter.hasErrors) None else Some(analysis)
+  }
+
+  def execute(settings: GenericRunnerSettings, compilation: CompilationLease, parent: ClassLoader, scriptParameters: Seq[String] = Seq.empty) : Boolean = {
+    //the further source files may hold state in top level objects, which must not be shared between builds
+    run(settings, scriptParameters)(ScriptClassLoaders.withClassLoader(compilation.key, compilation.directory, parent, shared = sourceFiles.isEmpty))
+  }
+
+  /**
+   * Runs a script whose classes are held in memory
+   */
+  def execute(settings: GenericRunnerSettings, compiled: CompiledClasses, parent: ClassLoader, scriptParameters: Seq[String]) : Boolean = {
+    run(settings, scriptParameters)(ScriptClassLoaders.withClassLoader(compiled, parent))
+  }
+
+  /**
+   * Runs the script
+   *
+   * @param withClassLoader Provides the classloader of the compiled script
+   */
+  private def run(settings: GenericRunnerSettings, scriptParameters: Seq[String])(withClassLoader: (ClassLoader => Boolean) => Boolean) : Boolean = {
+    val classLoadingStart = System.nanoTime
+    val result = withClassLoader {
+      runnerClasspath =>
+        //loading is timed apart from running, a missing class is reported by the runner
+        try {
+          runnerClasspath.loadClass(settings.script.value)
+        } catch {
+          case e: ClassNotFoundException =>
+        } finally {
+          timings.record(PhaseTimings.ClassLoading, PhaseTimings.millisSince(classLoadingStart))
+        }
 
-          for(classpathEntry <- classpathEntries) {
-            settings.classpath.append(classpathEntry)
+        //route stdout and stderr of the script to the log of this build
+        logProcess(PhaseTimings.Execution) {
+          OutputRouting.withOutput(listener.getLogger) {
+            ObjectInVmRunner.runAndCatch(runnerClasspath, settings.script.value, scriptParameters)
           }
+        } match {
+          case Left(ex) => {
+            ex.printStackTrace(listener.fatalError(ex.getMessage))
+            false
+          }
+          case Right(result) =>
+            result
         }
-        case None =>
-      }
     }
 
-    def extractScriptParameters() : Seq[String] = {
-      nonEmptyString(scriptParameters) match {
-        case Some(scriptParameters) => {
-          scriptParameters.split("""\s""")
+    listener.getLogger.println(s"Script classloaders cached: ${ScriptClassLoaders.cachedCount}, created: ${ScriptClassLoaders.createdCount}, reused: ${ScriptClassLoaders.reusedCount}, closed: ${ScriptClassLoaders.closedCount}")
+    listener.getLogger.println(s"Loaded classes: ${ScriptClassLoaders.loadedClassCount}, unloaded: ${ScriptClassLoaders.unloadedClassCount}, metaspace used: ${ScriptClassLoaders.metaspaceUsed / 1024}KB")
+    result
+  }
+
+  def logProfile(profile: CompileProfile) {
+    val phases = for(i <- 0 until profile.phases.size) yield profile.phases.get(i)
+    val slowestPhases = phases.sortBy(-_.millis).take(5).map(phase => s"${phase.phase}: ${phase.millis}ms")
+    listener.getLogger.println(s"Compilation profile, slowest phases: ${slowestPhases.mkString(", ")}")
+    listener.getLogger.println(s"Implicit searches: ${profile.implicitSearchCount} in ${profile.implicitSearchMicros / 1000}ms, macro expansions: ${profile.macroExpansionCount} in ${profile.macroExpansionMicros / 1000}ms, source files: ${profile.sourceFileCount}, classes: ${profile.classFileCount}")
+  }
+
+  /**
+   * Logs the start and completion of a process,
+   * and records its time as a phase
+   */
+  def logProcess[T](processName: String)(process: => T): T = {
+    listener.getLogger.println(s"Starting $processName...")
+    val start = System.nanoTime
+    val result = timings.time(processName)(process) //exec process
+    listener.getLogger.println(s"Complete $processName in ${PhaseTimings.millisSince(start)}ms.")
+
+    result
+  }
+
+  /**
+   * The user defined classpath entries, with relative entries resolved
+   * against the workspace rather than the working directory of the JVM
+   */
+  def userDefinedClasspathEntries : Seq[String] = {
+    val entries = nonEmptyString(classpath) match {
+      case Some(classpath) => {
+        if(unix) {
+          classpath.split(':').toSeq
+        } else {
+          classpath.split(';').toSeq
         }
-        case None => Seq.empty
       }
+      case None => Seq.empty
+    }
+    entries.map {
+      classpathEntry =>
+        workspace.filterNot(_ => new JFile(classpathEntry).isAbsolute).map(new JFile(_, classpathEntry).getPath).getOrElse(classpathEntry)
     }
+  }
 
-    @throws(classOf[IOException])
-    def using[C <: Closeable, T](is: C)(f: C => T): T = {
-      try {
-        f(is)
-      } finally {
-        is.close()
+  /**
+   * Sets up the user defined classpath
+   */
+  def setupUserDefinedClasspath(settings: GenericRunnerSettings) {
+    for(classpathEntry <- userDefinedClasspathEntries) {
+      settings.classpath.append(classpathEntry)
+    }
+  }
+
+  def extractScriptParameters() : Seq[String] = {
+    nonEmptyString(scriptParameters) match {
+      case Some(scriptParameters) => {
+        scriptParameters.split("""\s""")
       }
+      case None => Seq.empty
     }
+  }
 
-    type Filename = String
-    type Hash = String
-    type CompilationDirectory = FilePath
+  /**
+   * Compiles the script, or takes its compilation
+   * from the store, and then runs it
+   *
+   * @param store The store which holds the compilations
+   * @param parent The classloader that the compiler and the script resolve classes from
+   *
+   * @return true if the script compiled and ran without errors
+   */
+  def compileAndExecute(store: CompilationStore, parent: ClassLoader) : Boolean = {
+    //set script parameters
+    val sParams = extractScriptParameters
+
+    if(compilesInMemory) {
+      val (settings, compiled) = compileOrLookupInMemory(parent)
 
-    val cacheFile = new FilePath(workspace, "invmscalaexecuter.cache")
-    val cacheLock = new ReentrantReadWriteLock
+      //execute
+      compiled match {
+        case Some(compiled) =>
+          AdmissionControl.Executions.admit(job, priority, timings, PhaseTimings.ExecutionQueue, listener) {
+            execute(settings, compiled, parent, sParams)
+          }
+        case None =>
+          listener.fatalError("Compilation of Scala Script failed")
+          false
+      }
+    } else {
+      val (settings, compilation) = compileOrLookup(store, parent)
 
-    def locked[T](lock: => Lock, f: => T) : T = {
-      lock.lock()
-      try {
-        f
-      } finally {
-        lock.unlock()
+      //execute
+      compilation match {
+        case Some(compilation) =>
+          try {
+            AdmissionControl.Executions.admit(job, priority, timings, PhaseTimings.ExecutionQueue, listener) {
+              execute(settings, compilation, parent, sParams)
+            }
+          } finally {
+            compilation.release()
+          }
+        case None =>
+          listener.fatalError("Compilation of Scala Script failed")
+          false
       }
     }
+  }
+
+  /**
+   * Compiles the script into the store, or the BytecodeStore, without
+   * running it, so that a later build finds the compilation in the store
+   *
+   * @param store The store which holds the compilations
+   * @param parent The classloader that the compiler resolves classes from
+   *
+   * @return true if the script compiled without errors
+   */
+  def precompile(store: CompilationStore, parent: ClassLoader) : Boolean = {
+    if(compilesInMemory) {
+      compileOrLookupInMemory(parent)._2.nonEmpty
+    } else {
+      val (_, compilation) = compileOrLookup(store, parent)
+      compilation.foreach(_.release())
+      compilation.nonEmpty
+    }
+  }
 
-    def readLocked[T](f: => T) : T = locked(cacheLock.readLock, f)
+  /**
+   * Creates the settings of the compiler for the script
+   *
+   * @return the settings, and the cache key of the compilation
+   */
+  private def createSettings() : (GenericRunnerSettings, String) = {
+    val settings = new GenericRunnerSettings(errorFn)
+    settings.termConflict.tryToSetColon(List("object")) //"-Yresolve-term-conflict:object" needed as Jenkins uses packages and objects of the same name
+    listener.getLogger.println(s"Using boot classpath: ${settings.bootclasspath.toString}")
 
-    def writeLocked[T](f: => T) : T = locked(cacheLock.writeLock, f)
+    setupUserDefinedClasspath(settings)
 
-    def getCache() : Map[Filename, (Hash, CompilationDirectory)] = {
-      if(cacheFile.exists) {
-        //read the cache from the file
-        readLocked {
-          using(new ObjectInputStream(cacheFile.read)) {
-            is =>
-              is.readObject().asInstanceOf[Map[Filename, (Hash, FilePath)]]
-          }
-        }
-      } else {
-        //no cache
-        Map.empty[Filename, (Hash, CompilationDirectory)]
-      }
+    listener.getLogger.println(s"Using classpath: ${settings.classpath.toString}")
+    listener.getLogger.println(s"classpathURLs: ${settings.classpathURLs}")
+
+    //the cache key covers the script, classpath and settings, so must be calculated once the settings are complete
+    val cacheKey = timings.time(PhaseTimings.Hashing) {
+      CompilationCache.key(script.open, sourceFiles.map(new FilePath(_)), userDefinedClasspathEntries, settings)
     }
 
-    /**
-     * @return Some(cachedCompilationDirectory or None
-     */
-    def findCachedCompilation : Option[FilePath] = {
-      val cache = getCache()
-      if(cache.isEmpty) {
-        //no cache, therefore this is a new script that needs compiling
-        None
-      } else {
-
-        //calculate the hash of the current script
-        val currentHash = script.digest
-
-        //check currentHash against prevHash of the script
-        cache.get(script.getName()) match {
-          case Some((prevHash, cachedCompilationDirectory)) if(prevHash == currentHash) =>
-            //no change to script, can used cached version
-
-            //check cached compilation still exists
-            if(cachedCompilationDirectory.exists) {
-              listener.getLogger.println("Using cached compilation: " + cachedCompilationDirectory.getRemote)
-              Some(cachedCompilationDirectory)
-            } else {
-              None
-            }
-          case _ =>
-            //script has changed, or this is a new script, therefore we need to re-compile
-            None
+    //this tells the compiler that we are a script and not a valid scala compilation unit, so we set a default name for the class
+    //also used as the classname for the executer to execute
+    settings.script.value = CompilationCache.scriptObjectName(cacheKey)
+
+    listener.getLogger.println(s"Using Settings: ${settings.toConciseString}")
+
+    (settings, cacheKey)
+  }
+
+  /**
+   * true if the script is compiled into memory, only scripts without
+   * further source files, whose compilation is not profiled, may be
+   */
+  private lazy val compilesInMemory : Boolean = {
+    if(inMemory && (sourceFiles.nonEmpty || profiler.nonEmpty)) {
+      listener.getLogger.println("Scripts with further source files, or whose compilation is profiled, are not compiled into memory")
+    }
+    inMemory && sourceFiles.isEmpty && profiler.isEmpty
+  }
+
+  /**
+   * Compiles the script into memory, or takes its classes from the BytecodeStore
+   *
+   * @return the settings of the compilation, and Some(classes) of the compilation, or None if compilation failed
+   */
+  private def compileOrLookupInMemory(parent: ClassLoader) : (GenericRunnerSettings, Option[CompiledClasses]) = {
+    val (settings, cacheKey) = createSettings()
+
+    var compiled = false
+    var compileMillis = 0l
+    val lookupStart = System.nanoTime
+    val classes = BytecodeStore.getOrCompile(cacheKey) {
+      compiled = true
+      val compileStart = System.nanoTime
+      try {
+        AdmissionControl.Compilations.admit(job, priority, timings, PhaseTimings.CompilationQueue, listener) {
+          listener.getLogger.println("Compiling into memory")
+          val output = new VirtualDirectory("(memory)", None)
+          logProcess(PhaseTimings.Compilation) {
+            compileSources(settings, output, parent, true, Seq.empty, CompilationAnalysis.empty)
+          }.map(_ => CompiledClasses(cacheKey, output))
         }
+      } finally {
+        compileMillis = PhaseTimings.millisSince(compileStart)
       }
     }
+    //the time spent waiting for, or reading, the store, less any compilation and the wait for its admission
+    timings.record(PhaseTimings.CacheLookup, PhaseTimings.millisSince(lookupStart) - compileMillis)
+    if(!compiled) {
+      classes.foreach(cachedClasses => listener.getLogger.println(s"Using compilation cached in memory: ${cachedClasses.classes.size} classes"))
+    }
+    listener.getLogger.println(s"Bytecode cache hits: ${BytecodeStore.hitCount}, misses: ${BytecodeStore.missCount}, size: ${BytecodeStore.size / 1024}KB")
 
-    def updateCacheRecord(newCompilationDirectory: FilePath) {
-      val cache = getCache()
+    (settings, classes)
+  }
 
-      val updatedCache = cache + (script.getName -> (script.digest, newCompilationDirectory))
+  /**
+   * Compiles the script, or takes its compilation from the store
+   *
+   * @return the settings of the compilation, and Some(lease) on the compilation, or None if compilation failed
+   */
+  private def compileOrLookup(store: CompilationStore, parent: ClassLoader) : (GenericRunnerSettings, Option[CompilationLease]) = {
+    val (settings, cacheKey) = createSettings()
+
+    val lineage = script match {
+      case InVmScriptFile(path) if(sourceFiles.nonEmpty && sourceIds.nonEmpty && profiler.isEmpty) =>
+        Some(CompilationCache.lineage(path, sourceFiles.map(_.getPath), userDefinedClasspathEntries, settings))
+      case _ =>
+        None
+    }
 
-      writeLocked {
-        if(cacheFile.exists) {
-          cacheFile.deleteContents
+    //compile or get cached compilation
+    var compiled = false
+    var compileMillis = 0l
+    val lookupStart = System.nanoTime
+    val compilation = CompilationCache.getOrCompile(cacheKey, store) {
+      outputDirectory =>
+        compiled = true
+        val compileStart = System.nanoTime
+        try {
+          AdmissionControl.Compilations.admit(job, priority, timings, PhaseTimings.CompilationQueue, listener) {
+            lineage match {
+              case Some(lineage) =>
+                compileIncrementally(settings, outputDirectory, parent, store, lineage)
+              case None =>
+                compile(settings, outputDirectory, parent)
+            }
+          }
+        } finally {
+          compileMillis = PhaseTimings.millisSince(compileStart)
         }
-        using(new ObjectOutputStream(cacheFile.write())) {
-          os =>
-            os.writeObject(updatedCache)
+    }
+    for(lineage <- lineage; compilation <- compilation if(store.latest(lineage) != Some(compilation.key))) {
+      store.updateLatest(lineage, compilation.key)
+    }
+    //the time spent waiting for, or reading, the store, less any compilation and the wait for its admission
+    timings.record(PhaseTimings.CacheLookup, PhaseTimings.millisSince(lookupStart) - compileMillis)
+    if(!compiled) {
+      compilation.foreach(cachedCompilation => listener.getLogger.println("Using cached compilation: " + cachedCompilation.directory))
+
+      if(compilation.nonEmpty && profiler.nonEmpty) {
+        //the cached compilation can not be profiled, so the script is compiled again to a directory that is then thrown away
+        listener.getLogger.println("Compiling the script again to profile the compilation")
+        val profileDirectory = JFile.createTempFile("scala-profile", "")
+        profileDirectory.delete()
+        profileDirectory.mkdir()
+        try {
+          AdmissionControl.Compilations.admit(job, priority, timings, PhaseTimings.CompilationQueue, listener) {
+            compile(settings, profileDirectory, parent, PhaseTimings.ProfilingCompilation)
+          }
+        } finally {
+          new FilePath(profileDirectory).deleteRecursive()
         }
       }
     }
+    listener.getLogger.println(s"Compilation cache hits: ${CompilationCache.hitCount}, misses: ${CompilationCache.missCount}")
 
-    def compileAndExecute = {
-      val settings = new GenericRunnerSettings(errorFn)
-      settings.termConflict.tryToSetColon(List("object")) //"-Yresolve-term-conflict:object" needed as Jenkins uses packages and objects of the same name
-      listener.getLogger.println(s"Using boot classpath: ${settings.bootclasspath.toString}")
+    (settings, compilation)
+  }
+}
 
-      setupUserDefinedClasspath(settings)
+/**
+ * Compiles and runs a script inside the JVM of the agent
+ * that holds the script, rather than on the controller.
+ *
+ * The remoting layer loads the classes of the plugin, including the
+ * Scala compiler, into a classloader that it keeps for the lifetime
+ * of the channel, so the compiler is only shipped to each agent once.
+ * As the CompilerPool and the CompilationStore are also held by that
+ * classloader, warm compilers and compilations are re-used by the
+ * following builds on the same agent.
+ *
+ * @param storeRoot The directory on the agent which holds the CompilationStore
+ * @param profiler Receives the profile of the compilation on the agent, if the compilation is to be profiled
+ * @param job The full name of the job, for the AdmissionControl of the agent
+ * @param priority The priority of the job in the AdmissionControl of the agent
+ * @param inMemory true to compile into the memory of the agent
+ * @param workspace The workspace on the agent that relative classpath entries are resolved against, or null
+ */
+@SerialVersionUID(1l)
+class AgentInVmScript(listener: TaskListener, script: InVmScriptSource, sourceFiles: Array[String], classpath: String, scriptParameters: String, unix: Boolean, storeRoot: String, profiler: Option[CompileProfiler], job: String, priority: Int, inMemory: Boolean, workspace: String) extends Callable[AgentInVmResult, IOException] {
 
-      listener.getLogger.println(s"Using classpath: ${settings.classpath.toString}")
-      listener.getLogger.println(s"classpathURLs: ${settings.classpathURLs}")
+  override def call() : AgentInVmResult = {
+    try {
+      val timings = new PhaseTimings
+      val inVmScript = new InVmScript(listener, script, sourceFiles.map(new JFile(_)), classpath, scriptParameters, unix, timings, profiler, job, priority, inMemory, Option(workspace).map(new JFile(_)))
+      val success = inVmScript.compileAndExecute(CompilationStore.at(new JFile(storeRoot)), getClass.getClassLoader)
+      AgentInVmResult(success, timings, profiler.flatMap(profiler => Option(profiler.getProfile)))
+    } finally {
+      listener.getLogger.flush()
+    }
+  }
+}
 
-      //set script parameters
-      val sParams = extractScriptParameters
+/**
+ * The result of an AgentInVmScript
+ *
+ * @param success true if the script ran without errors
+ * @param timings The timings recorded on the agent
+ * @param profile The profile of the compilation on the agent, if it was profiled
+ */
+@SerialVersionUID(1l)
+case class AgentInVmResult(success: Boolean, timings: PhaseTimings, profile: Option[CompileProfile])
 
-      //this tells the compiler that we are a script and not a valid scala compilation unit, so we set a default name for the class
-      //also used as the classname for the executer to execute
-      //settings.script.value = "MainInVmScalaScript" + System.nanoTime //TODO must be unique, need a unique class name depending on when the script changes (hash of script) or file changes (last modified time?)
-      settings.script.value = script.getBaseName
+class InVmScalaExecuter extends ScalaExecuter {
 
-      listener.getLogger.println(s"Using Settings: ${settings.toConciseString}")
+  def execute(build: AbstractBuild[_, _], launcher: Launcher, listener: BuildListener, scalaHome: String, script: FilePath, sources: Array[FilePath], classpath: String, scriptParameters: String, runOnAgent: Boolean, timings: PhaseTimings, profiler: CompileProfiler, priority: Int, inMemory: Boolean) : Boolean = {
 
-      //compiler or get cached compiled
-      val compilationDirectory = findCachedCompilation getOrElse {
-        val newCompilationDirectory = compile(settings)
-        updateCacheRecord(newCompilationDirectory)
-        newCompilationDirectory
-      }
+    //business time!
+    Option(script) match {
+      case Some(script) =>
+        if(runOnAgent) {
+          execute(build, launcher, listener, InVmScriptFile(script.getRemote), sources.map(_.getRemote), classpath, scriptParameters, runOnAgent, timings, profiler, priority, inMemory)
+        } else {
+          execute(build, launcher, listener, InVmScriptFile(script.act(new FilePathExtractor).getAbsolutePath), sources.map(_.act(new FilePathExtractor).getAbsolutePath), classpath, scriptParameters, runOnAgent, timings, profiler, priority, inMemory)
+        }
 
-      //execute
-      val compilationDirectoryFile = compilationDirectory.act(new FilePathExtractor)
-      logProcess("Execution") {
-        execute(settings, compilationDirectoryFile, sParams)
-      }
+      case None =>
+        listener.fatalError("Could not process Scala Script, no script provided!")
+        false
     }
+  }
 
-    //business time!
-    Option(script) match {
+  /**
+   * Executes an inline script, which is compiled from memory
+   *
+   * @param priority The priority of the job when waiting to compile or execute, see AdmissionControl
+   * @param inMemory true to compile into memory rather than the CompilationStore, see BytecodeStore
+   */
+  def executeInline(build: AbstractBuild[_, _], launcher: Launcher, listener: BuildListener, scalaHome: String, script: String, classpath: String, scriptParameters: String, runOnAgent: Boolean, timings: PhaseTimings, profiler: CompileProfiler, priority: Int, inMemory: Boolean) : Boolean = {
+    nonEmptyString(script) match {
       case Some(script) =>
-        compileAndExecute
-        true
+        execute(build, launcher, listener, InVmInlineScript(script), Array.empty, classpath, scriptParameters, runOnAgent, timings, profiler, priority, inMemory)
 
       case None =>
         listener.fatalError("Could not process Scala Script, no script provided!")
@@ -297,6 +769,39 @@ class InVmScalaExecuter extends ScalaExecuter {
     }
   }
 
+  /**
+   * Compiles an inline script into the store, or the BytecodeStore, of the controller, without
+   * running it, so that the next build of the script finds it compiled
+   *
+   * @param unix true if the classpath entries are separated by ':' rather than ';'
+   * @param inMemory true to compile into the BytecodeStore
+   *
+   * @return true if the script compiled without errors
+   */
+  def precompileInline(listener: TaskListener, script: String, classpath: String, unix: Boolean, inMemory: Boolean) : Boolean = {
+    nonEmptyString(script) match {
+      case Some(script) =>
+        new InVmScript(listener, InVmInlineScript(script), Seq.empty, classpath, null, unix, priority = AdmissionControl.BackgroundPriority, inMemory = inMemory).precompile(CompilationStore.default, Jenkins.getInstance.getPluginManager.uberClassLoader)
+
+      case None =>
+        true
+    }
+  }
+
+  private def execute(build: AbstractBuild[_, _], launcher: Launcher, listener: BuildListener, script: InVmScriptSource, sources: Array[String], classpath: String, scriptParameters: String, runOnAgent: Boolean, timings: PhaseTimings, profiler: CompileProfiler, priority: Int, inMemory: Boolean) : Boolean = {
+    if(runOnAgent) {
+      val nodeRoot = Option(build.getBuiltOn).flatMap(node => Option(node.getRootPath)).getOrElse(build.getWorkspace)
+      listener.getLogger.println(s"Running Scala Script in the JVM of ${Option(build.getBuiltOn).map(_.getNodeName).filterNot(_.isEmpty).getOrElse("the controller")}")
+      val result = launcher.getChannel.call(new AgentInVmScript(listener, script, sources, classpath, scriptParameters, launcher.isUnix, nodeRoot.child(CompilationStore.NodePath).getRemote, Option(profiler), build.getProject.getFullName, priority, inMemory, Option(build.getWorkspace).map(_.getRemote).orNull))
+      timings.addAll(result.timings)
+      result.profile.foreach(profile => profiler.setProfile(profile))
+      result.success
+    } else {
+      val inVmScript = new InVmScript(listener, script, sources.map(new JFile(_)), classpath, scriptParameters, launcher.isUnix, timings, Option(profiler), build.getProject.getFullName, priority, inMemory, Option(build.getWorkspace).map(_.getRemote).map(new JFile(_)))
+      inVmScript.compileAndExecute(CompilationStore.default, Jenkins.getInstance.getPluginManager.uberClassLoader)
+    }
+  }
+
   /*
   class JenkinsReporter(settings: GenericRunnerSettings, listener: BuildListener) extends AbstractReporter {
 
@@ -0,0 +1,363 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import hudson.model.{AbstractBuild, TaskListener}
+import java.io.{BufferedOutputStream, ByteArrayOutputStream, File => JFile, FileOutputStream, IOException, OutputStream, PrintStream}
+import java.util.{ArrayDeque, Arrays}
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Pumps the output of a forked script into the log of the build
+ * from a separate thread, so that a slow log never stalls the script.
+ *
+ * The output is split into lines which are queued in a bounded buffer,
+ * if the log falls so far behind that the buffer is full then further
+ * lines are dropped from the log. Lines are also dropped whilst the
+ * script exceeds the rate limits of the log, and runs of identical
+ * lines are collapsed into a count. Once the head of the output has
+ * been logged, only the tail is kept and it is logged when the script
+ * finishes.
+ *
+ * The complete output is written to the spill stream as it arrives,
+ * so that nothing which is omitted from the log is lost. Output which
+ * arrives after the pump is closed can no longer be logged or spilled,
+ * so the log is marked as truncated instead.
+ *
+ * @param log The log of the build
+ * @param spill Receives the complete output, if any
+ * @param limits The limits on what is written to the log
+ */
+class LogPump(log: PrintStream, spill: Option[OutputStream], limits: LogPump.Limits = LogPump.Limits()) extends OutputStream {
+
+  private val queue = new ArrayBlockingQueue[Array[Byte]](limits.bufferLines)
+  private val partial = new ByteArrayOutputStream
+  private val dropped = new AtomicLong
+  private var spillStream = spill
+  @volatile private var closed = false
+  private var lateBytes = 0l
+
+  //only accessed by the pump thread until it has finished
+  private val tail = new ArrayDeque[Array[Byte]]
+  private var previous: Array[Byte] = null
+  private var repeats = 0l
+  private var logged = 0l
+  private var omitted = 0l
+  private var suppressed = 0l
+  private var unreportedSuppressed = 0l
+  private var reportedDropped = 0l
+  private var lineTokens = limits.maxLinesPerSecond.toDouble
+  private var byteTokens = limits.maxBytesPerSecond.toDouble
+  private var lastRefill = System.nanoTime
+  private var endsWithNewline = true
+
+  private val pump = new Thread(new Runnable {
+    override def run() {
+      while(!closed || !queue.isEmpty) {
+        val line = queue.poll(LogPump.PollInterval, TimeUnit.MILLISECONDS)
+        if(line != null) {
+          handle(line)
+        }
+      }
+    }
+  }, "Scala script log pump")
+  pump.setDaemon(true)
+  pump.start()
+
+  /**
+   * @return the number of lines of the output which were omitted from the log
+   */
+  def omittedLines : Long = omitted + suppressed + dropped.get
+
+  override def write(b: Int) {
+    write(Array(b.toByte), 0, 1)
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int) {
+    synchronized {
+      if(closed) {
+        late(len)
+      } else {
+        writeSpill(b, off, len)
+
+        var start = off
+        for(i <- off until off + len) {
+          if(b(i) == '\n' || partial.size + (i + 1 - start) >= limits.maxLineLength) {
+            partial.write(b, start, i + 1 - start)
+            enqueue()
+            start = i + 1
+          }
+        }
+        partial.write(b, start, off + len - start)
+      }
+    }
+  }
+
+  private def writeSpill(b: Array[Byte], off: Int, len: Int) {
+    spillStream.foreach {
+      os =>
+        try {
+          os.write(b, off, len)
+        } catch {
+          case ioe: IOException =>
+            //the log is more important than the spill, so stop spilling rather than failing the script
+            spillStream = None
+        }
+    }
+  }
+
+  private def enqueue() {
+    val line = partial.toByteArray
+    partial.reset()
+    if(!queue.offer(line)) {
+      dropped.incrementAndGet
+    }
+  }
+
+  /**
+   * Waits for the queued lines, including any partial last line, to be
+   * logged, then logs the tail of the output and a summary of what was
+   * omitted. Closes the spill stream, but not the log.
+   *
+   * Writes wait whilst the pump is closed, so that any which arrive
+   * later are reported after the rest of the output.
+   */
+  override def close() {
+    synchronized {
+      if(!closed) {
+        if(partial.size > 0) {
+          enqueue()
+        }
+        closed = true
+        pump.join()
+        finish()
+      }
+    }
+  }
+
+  private def finish() {
+    flushRepeats()
+    reportOmissions()
+    if(!tail.isEmpty) {
+      logMessage(s"[SCALA PLUGIN] The log was truncated after ${limits.headLines} lines, the last ${tail.size} lines of the output follow")
+      while(!tail.isEmpty) {
+        writeLog(tail.removeFirst())
+      }
+    }
+    if(!endsWithNewline) {
+      log.println()
+      endsWithNewline = true
+    }
+    log.flush()
+
+    spillStream.foreach {
+      os =>
+        try {
+          os.close()
+        } catch {
+          case ioe: IOException =>
+            log.println(s"[SCALA PLUGIN WARNING] Could not complete the spill of the output of the script: ${ioe.getMessage}")
+        }
+    }
+    spillStream = None
+  }
+
+  /**
+   * Marks the log as truncated by output which arrived after the pump was closed,
+   * once for the first late write, as the log is not expected to be written to again
+   */
+  private def late(len: Int) {
+    if(lateBytes == 0 && len > 0) {
+      log.println("[SCALA PLUGIN WARNING] The output of the script was truncated, further output arrived after the script finished")
+      log.flush()
+    }
+    lateBytes += len
+  }
+
+  private def handle(line: Array[Byte]) {
+    if(previous != null && Arrays.equals(line, previous)) {
+      repeats += 1
+    } else {
+      flushRepeats()
+      previous = line
+      output(line, limited = true)
+    }
+  }
+
+  private def flushRepeats() {
+    if(repeats > 0) {
+      output(s"[SCALA PLUGIN] previous line repeated $repeats times\n".getBytes, limited = false)
+      repeats = 0
+    }
+  }
+
+  /**
+   * Logs a line, or keeps it in the tail once the head has been logged
+   *
+   * @param limited true if the line is subject to the rate limits
+   */
+  private def output(line: Array[Byte], limited: Boolean) {
+    if(logged >= limits.headLines) {
+      if(limited) {
+        omitted += 1
+      }
+      tail.addLast(line)
+      if(tail.size > limits.tailLines) {
+        tail.removeFirst()
+      }
+    } else if(limited && !takeTokens(line.length)) {
+      suppressed += 1
+      unreportedSuppressed += 1
+    } else {
+      reportOmissions()
+      writeLog(line)
+      logged += 1
+    }
+  }
+
+  private def takeTokens(bytes: Int) : Boolean = {
+    val now = System.nanoTime
+    val seconds = (now - lastRefill) / 1e9
+    lastRefill = now
+    lineTokens = math.min(limits.maxLinesPerSecond, lineTokens + seconds * limits.maxLinesPerSecond)
+    byteTokens = math.min(limits.maxBytesPerSecond, byteTokens + seconds * limits.maxBytesPerSecond)
+
+    //a line longer than a second of the byte rate may only be logged once the bucket is full
+    val cost = math.min(bytes, limits.maxBytesPerSecond)
+    if(lineTokens >= 1 && byteTokens >= cost) {
+      lineTokens -= 1
+      byteTokens -= cost
+      true
+    } else {
+      false
+    }
+  }
+
+  private def reportOmissions() {
+    val newlyDropped = dropped.get - reportedDropped
+    if(unreportedSuppressed > 0) {
+      logMessage(s"[SCALA PLUGIN WARNING] $unreportedSuppressed lines omitted from the log as the script exceeded the rate limit of the log")
+      unreportedSuppressed = 0
+    }
+    if(newlyDropped > 0) {
+      logMessage(s"[SCALA PLUGIN WARNING] $newlyDropped lines omitted from the log as the log could not keep up with the script")
+      reportedDropped += newlyDropped
+    }
+  }
+
+  private def logMessage(message: String) {
+    if(!endsWithNewline) {
+      log.println()
+    }
+    log.println(message)
+    endsWithNewline = true
+  }
+
+  private def writeLog(line: Array[Byte]) {
+    log.write(line, 0, line.length)
+    endsWithNewline = line.length > 0 && line(line.length - 1) == '\n'
+  }
+}
+
+object LogPump {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.LogPump"
+
+  private val PollInterval = 100
+
+  /**
+   * The limits on what is written to the log
+   *
+   * @param bufferLines The most lines which may be queued for the log
+   * @param maxLinesPerSecond The rate limit of the log in lines
+   * @param maxBytesPerSecond The rate limit of the log in bytes
+   * @param headLines The most lines logged before only the tail is kept
+   * @param tailLines The most lines kept for the tail
+   * @param maxLineLength The length in bytes after which a line is split
+   */
+  case class Limits(
+    bufferLines: Int = Integer.getInteger(s"$PropertyPrefix.bufferLines", 10000),
+    maxLinesPerSecond: Int = Integer.getInteger(s"$PropertyPrefix.maxLinesPerSecond", 1000),
+    maxBytesPerSecond: Int = Integer.getInteger(s"$PropertyPrefix.maxBytesPerSecond", 1024 * 1024),
+    headLines: Int = Integer.getInteger(s"$PropertyPrefix.headLines", 10000),
+    tailLines: Int = Integer.getInteger(s"$PropertyPrefix.tailLines", 1000),
+    maxLineLength: Int = Integer.getInteger(s"$PropertyPrefix.maxLineLength", 64 * 1024)
+  )
+
+  /**
+   * If set then the output of forked scripts is written directly to the log
+   */
+  val disabled = java.lang.Boolean.getBoolean(s"$PropertyPrefix.disabled")
+
+  /**
+   * Runs a forked script with its output pumped into the log of the build,
+   * and spilled to a compressed file in the directory of the build. The
+   * spill file is kept only if some of the output was omitted from the log.
+   *
+   * The pump runs on the controller, where the output of the script
+   * arrives, so the spill is written to the local disk of the controller
+   * rather than to the workspace, which may be on an agent.
+   *
+   * @param build The build which runs the script
+   * @param listener The listener of the build
+   * @param f Runs the script with the stream that receives its output
+   */
+  def withLogPump[T](build: AbstractBuild[_, _], listener: TaskListener)(f: OutputStream => T) : T = {
+    if(disabled) {
+      f(listener.getLogger)
+    } else {
+      val spill = try {
+        val file = JFile.createTempFile("scala-output-", ".log.gz", build.getRootDir)
+        Some((file, new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024), 64 * 1024)))
+      } catch {
+        case ioe: IOException =>
+          listener.getLogger.println(s"[SCALA PLUGIN WARNING] Could not create a file to spill the output of the script to: ${ioe.getMessage}")
+          None
+      }
+
+      val pump = new LogPump(listener.getLogger, spill.map(_._2))
+      try {
+        f(pump)
+      } finally {
+        pump.close()
+        spill.foreach {
+          case (file, _) =>
+            if(pump.omittedLines > 0) {
+              listener.getLogger.println(s"[SCALA PLUGIN] The complete output of the script is in ${file.getAbsolutePath}")
+            } else {
+              file.delete()
+            }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{OutputStream, PrintStream}
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
+
+/**
+ * Buffers the output of a script and writes it to the underlying
+ * stream in batches, either when the buffer is full or when flushed.
+ *
+ * The log of a build may be a remote stream, so writing each line
+ * separately is expensive for chatty scripts. Closing the stream
+ * flushes it, but does not close the underlying stream.
+ *
+ * @param out The stream to write the batches to
+ * @param bufferSize The size in bytes of the buffer
+ */
+class BatchedOutputStream(out: OutputStream, bufferSize: Int) extends OutputStream {
+
+  private val buffer = new Array[Byte](bufferSize)
+  private var count = 0
+
+  override def write(b: Int) {
+    synchronized {
+      if(count == buffer.length) {
+        flushBuffer()
+      }
+      buffer(count) = b.toByte
+      count += 1
+    }
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int) {
+    synchronized {
+      if(len >= buffer.length) {
+        //larger than the buffer, so write it through
+        flushBuffer()
+        out.write(b, off, len)
+      } else {
+        if(len > buffer.length - count) {
+          flushBuffer()
+        }
+        System.arraycopy(b, off, buffer, count, len)
+        count += len
+      }
+    }
+  }
+
+  override def flush() {
+    synchronized {
+      flushBuffer()
+      out.flush()
+    }
+  }
+
+  override def close() {
+    flush()
+  }
+
+  private def flushBuffer() {
+    if(count > 0) {
+      out.write(buffer, 0, count)
+      count = 0
+    }
+  }
+}
+
+/**
+ * Writes to the output stream of the current thread if
+ * one has been routed, otherwise to the default stream
+ *
+ * @param default The stream to write to when no stream has been routed
+ */
+class RoutingOutputStream(default: PrintStream) extends OutputStream {
+
+  private def target = Option(OutputRouting.routed.get).getOrElse(default)
+
+  override def write(b: Int) {
+    target.write(b)
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int) {
+    target.write(b, off, len)
+  }
+
+  /**
+   * Routed streams are flushed by the OutputRouting,
+   * so that they are written in batches
+   */
+  override def flush() {
+    if(OutputRouting.routed.get == null) {
+      default.flush()
+    }
+  }
+}
+
+/**
+ * Writes to the output of a script until the script has finished,
+ * and then to the default stream.
+ *
+ * Threads which are started while a script runs inherit its Console,
+ * including pool threads which outlive the build, so once detached
+ * they no longer write to, nor hold on to, the log of the build.
+ *
+ * @param out The output of the script
+ * @param default The stream to write to once detached
+ */
+class DetachableOutputStream(out: OutputStream, default: PrintStream) extends OutputStream {
+
+  private var target: OutputStream = out
+
+  override def write(b: Int) {
+    synchronized {
+      target.write(b)
+    }
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int) {
+    synchronized {
+      target.write(b, off, len)
+    }
+  }
+
+  override def flush() {
+    synchronized {
+      target.flush()
+    }
+  }
+
+  /**
+   * Writes any further output to the default stream
+   */
+  def detach() {
+    synchronized {
+      target = default
+    }
+  }
+}
+
+/**
+ * Routes the output of a script to the log of its build.
+ *
+ * Setting the Console output would redirect the output of every thread,
+ * so concurrent builds would mix their output. Instead the output of a
+ * build is bound to the thread that runs the script, for the Console and
+ * for System.out and System.err, which are replaced by streams that write
+ * to the output of the current thread. Any other thread writes to the
+ * original System.out and System.err. The output is written to the log
+ * through a BatchedOutputStream, which is flushed periodically and when
+ * the script finishes.
+ *
+ * Threads that the script starts inherit only its Console, which is
+ * detached from the log when the script finishes.
+ *
+ * The routing may be tuned through the system properties:
+ *   hudson.plugins.scala.executer.OutputRouting.bufferSize (bytes)
+ *   hudson.plugins.scala.executer.OutputRouting.flushInterval (milliseconds)
+ *   hudson.plugins.scala.executer.OutputRouting.routeSystemOut (set to false to leave System.out and System.err alone)
+ */
+object OutputRouting {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.OutputRouting"
+
+  val bufferSize: Int = Integer.getInteger(s"$PropertyPrefix.bufferSize", 8192)
+
+  val flushInterval: Long = java.lang.Long.getLong(s"$PropertyPrefix.flushInterval", 250)
+
+  val routeSystemOut: Boolean = !"false".equals(System.getProperty(s"$PropertyPrefix.routeSystemOut"))
+
+  //not inheritable, as pool threads which are created whilst a script runs would keep writing to its log
+  private[executer] val routed = new ThreadLocal[PrintStream]
+
+  private var installed = false
+
+  //the System.out from before it was replaced
+  @volatile private var defaultOut: PrintStream = System.out
+
+  private lazy val flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    override def newThread(r: Runnable) = {
+      val thread = new Thread(r, "Scala Script output flusher")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
+  /**
+   * Calls `f` with the Console, System.out and System.err of the
+   * current thread routed to the log
+   *
+   * @param log The log of the build
+   */
+  def withOutput[T](log: PrintStream)(f: => T) : T = {
+    if(routeSystemOut) {
+      install()
+    }
+
+    val batched = new BatchedOutputStream(log, bufferSize)
+    val detachable = new DetachableOutputStream(batched, defaultOut)
+    val out = new PrintStream(detachable, false)
+    val periodicFlush = flusher.scheduleWithFixedDelay(new Runnable {
+      override def run() {
+        out.flush()
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS)
+
+    val previous = routed.get
+    routed.set(out)
+    try {
+      Console.withOut(out) {
+        Console.withErr(out) {
+          f
+        }
+      }
+    } finally {
+      if(previous == null) {
+        routed.remove()
+      } else {
+        routed.set(previous)
+      }
+      detachable.detach()
+      periodicFlush.cancel(false)
+      batched.close()
+    }
+  }
+
+  /**
+   * Replaces System.out and System.err with streams that
+   * write to the output of the current thread
+   */
+  private def install() {
+    synchronized {
+      if(!installed) {
+        defaultOut = System.out
+        System.setOut(new PrintStream(new RoutingOutputStream(System.out), true))
+        System.setErr(new PrintStream(new RoutingOutputStream(System.err), true))
+        installed = true
+      }
+    }
+  }
+}
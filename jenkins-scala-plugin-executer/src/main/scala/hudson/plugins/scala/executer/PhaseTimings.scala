@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.util.{LinkedHashMap => JLinkedHashMap, Map => JMap}
+import scala.collection.JavaConverters._
+
+/**
+ * The time spent in each phase of running a script.
+ *
+ * Phases are recorded in the order in which they first
+ * occur, and the time of a phase that occurs more than once is
+ * summed. Timings are serializable so that those recorded on an
+ * agent can be returned to the controller.
+ */
+@SerialVersionUID(1l)
+class PhaseTimings extends Serializable {
+
+  private val phases = new JLinkedHashMap[String, java.lang.Long]
+
+  /**
+   * Times a phase
+   *
+   * @param phase The name of the phase
+   * @param f The work of the phase
+   */
+  def time[T](phase: String)(f: => T) : T = {
+    val start = System.nanoTime
+    try {
+      f
+    } finally {
+      record(phase, PhaseTimings.millisSince(start))
+    }
+  }
+
+  /**
+   * Records the time spent in a phase
+   *
+   * @param phase The name of the phase
+   * @param millis The time spent in milliseconds
+   */
+  def record(phase: String, millis: Long) : Unit = synchronized {
+    phases.put(phase, apply(phase) + millis)
+  }
+
+  /**
+   * Records all of the phases of another set of timings
+   */
+  def addAll(other: PhaseTimings) {
+    for((phase, millis) <- other.toMap.asScala) {
+      record(phase, millis)
+    }
+  }
+
+  /**
+   * @return the milliseconds spent in the phase, or 0 if it has not been recorded
+   */
+  def apply(phase: String) : Long = synchronized {
+    Option(phases.get(phase)).map(_.longValue).getOrElse(0l)
+  }
+
+  /**
+   * @return true if the phase has been recorded
+   */
+  def contains(phase: String) : Boolean = synchronized {
+    phases.containsKey(phase)
+  }
+
+  /**
+   * @return a copy of the recorded phases and their milliseconds, in the order that they occurred
+   */
+  def toMap : JMap[String, java.lang.Long] = synchronized {
+    new JLinkedHashMap[String, java.lang.Long](phases)
+  }
+
+  override def toString = toMap.asScala.map { case (phase, millis) => s"$phase: ${millis}ms" }.mkString(", ")
+}
+
+object PhaseTimings {
+  final val Installation = "installation"
+  final val ScriptFetch = "script fetch"
+  final val BuildAvoidance = "build avoidance"
+  final val Hashing = "hashing"
+  final val CacheLookup = "cache lookup"
+  final val CompilationQueue = "compilation queue"
+  final val Compilation = "compilation"
+  final val ProfilingCompilation = "profiling compilation"
+  final val ExecutionQueue = "execution queue"
+  final val ClassLoading = "class loading"
+  final val ClassDataSharing = "class data sharing"
+  final val Execution = "execution"
+
+  def millisSince(startNanos: Long) = (System.nanoTime - startNanos) / 1000000
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import hudson.FilePath
+import hudson.remoting.VirtualChannel
+import java.io.{File => JFile}
+import java.security.MessageDigest
+import jenkins.model.Jenkins
+
+/**
+ * Scripts which are compiled once into a jar, and then
+ * run by the forked executor with plain `java`.
+ *
+ * A jar is compiled by `scalac` on the first node that needs it, and
+ * is then kept both in a cache on that node and in a CompilationStore
+ * on the controller, from where it is copied to any other node that
+ * lacks it. Jars are keyed by a SHA-256 hash of the content of the script
+ * and of any further source files, the digests of the user classpath
+ * entries and of the node's scala-library, and the scalac parameters.
+ *
+ * The store on the controller is held in $JENKINS_HOME/scala-plugin/jars
+ * and uses the size and age limits of the CompilationStore.
+ */
+object PrecompiledScripts {
+
+  /**
+   * Version of the key, increment this if
+   * the composition of the key changes
+   */
+  private val KeyVersion = "2"
+
+  /**
+   * The name of the jar within an entry of the store
+   */
+  val JarName = "script.jar"
+
+  /**
+   * Location of the jar cache relative to the root of a node
+   */
+  val NodeCachePath = "scala-plugin/jars"
+
+  lazy val store : CompilationStore = new CompilationStore(
+    new JFile(Jenkins.getInstance.getRootDir, "scala-plugin" + JFile.separator + "jars"),
+    CompilationStore.maxSize,
+    CompilationStore.maxAge
+  )
+
+  /**
+   * Calculates the key of the jar for a script
+   *
+   * @param script The script to be compiled
+   * @param sources Further source files compiled together with the script
+   * @param classpathEntries The user defined classpath entries on the node
+   * @param scalaLibrary The scala-library jar on the node
+   * @param compilerParameters The parameters passed to scalac
+   *
+   * @return a hex encoded SHA-256 hash
+   */
+  def key(script: FilePath, sources: Seq[FilePath], classpathEntries: Seq[FilePath], scalaLibrary: FilePath, compilerParameters: Seq[String]) : String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+
+    def update(value: String) {
+      digest.update(value.getBytes("UTF-8"))
+      digest.update(0.toByte)
+    }
+
+    def fingerprint(file: FilePath) : String = {
+      if(!file.exists) {
+        "missing"
+      } else if(file.isDirectory) {
+        //the root of a directory is not modified when a file within it is rewritten
+        file.act(new DirectoryFingerprint)
+      } else {
+        file.digest
+      }
+    }
+
+    update(KeyVersion)
+    update(fingerprint(scalaLibrary))
+    compilerParameters.foreach(update)
+    for(classpathEntry <- classpathEntries) {
+      update(classpathEntry.getRemote)
+      update(fingerprint(classpathEntry))
+    }
+    update(script.digest)
+    for(source <- sources) {
+      update(source.getName)
+      update(source.digest)
+    }
+
+    digest.digest.map("%02x".format(_)).mkString
+  }
+
+  /**
+   * Options of the scala runner, rather than of the compiler, which scalac rejects
+   */
+  private val RunnerFlags = Set("-savecompiled", "-save", "-nocompdaemon", "-nc", "-nobootcp", "-usebootcp")
+
+  /**
+   * Options of the scala runner which are followed by an argument
+   */
+  private val RunnerOptionsWithArgument = Set("-i", "-e", "-toolcp")
+
+  /**
+   * Selects the parameters of the scala runner that scalac accepts, leaving out
+   * the options of the JVM (-J and -D) and those only understood by the runner
+   */
+  def compilerParameters(scalaParameters: Seq[String]) : Seq[String] = {
+    def select(parameters: List[String]) : List[String] = parameters match {
+      case option :: _ :: rest if(RunnerOptionsWithArgument(option)) => select(rest)
+      case option :: rest if(option.startsWith("-J") || option.startsWith("-D") || option.startsWith("-howtorun:") || RunnerFlags(option)) => select(rest)
+      case parameter :: rest => parameter :: select(rest)
+      case Nil => Nil
+    }
+    select(scalaParameters.toList)
+  }
+
+  /**
+   * Selects the parameters of the scala runner that are passed to the JVM,
+   * the -J options without their prefix, and the -D system properties
+   */
+  def jvmParameters(scalaParameters: Seq[String]) : Seq[String] = {
+    scalaParameters.collect {
+      case option if(option.startsWith("-J")) => option.substring(2)
+      case property if(property.startsWith("-D")) => property
+    }
+  }
+
+  /**
+   * The name of the object that the script is compiled into
+   */
+  def scriptObjectName(key: String) = CompilationCache.scriptObjectName(key)
+}
+
+/**
+ * Fingerprints a directory classpath entry on its node by
+ * walking its files, see CompilationCache.fingerprint
+ */
+class DirectoryFingerprint extends FilePath.FileCallable[String] {
+  def invoke(directory: JFile, channel: VirtualChannel) : String = CompilationCache.fingerprint(directory)
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{Closeable, File => JFile, IOException}
+import java.lang.management.ManagementFactory
+import java.net.URLClassLoader
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.JavaConverters._
+
+/**
+ * A classloader that is held by the ScriptClassLoaders cache
+ *
+ * @param key The key that the classloader was cached under
+ * @param classLoader The classloader of the compiled script
+ */
+class CachedClassLoader private[executer] (val key: String, val classLoader: ClassLoader) {
+  private[executer] var users = 0
+  private[executer] var evicted = false
+}
+
+/**
+ * A bounded cache of the classloaders that compiled scripts are run from.
+ *
+ * Creating a new classloader for every execution means that the classes
+ * of a script are loaded again by every build, and as those classloaders
+ * were never closed they held on to their file handles until they were
+ * collected. Instead classloaders are keyed by the compilation that they
+ * load from, so builds which run the same bytecode share one classloader,
+ * and the least recently used classloaders are closed when the cache is
+ * over its limit.
+ *
+ * Only the classloaders of scripts without further source files are
+ * shared, as the script body is run within `main`, so each execution starts
+ * from fresh instances of the script's classes. The further source files
+ * may define top level objects, whose state would otherwise persist between
+ * builds and be shared by concurrent builds, so each of their executions
+ * has its own classloader, which is closed when the execution finishes.
+ *
+ * The size of the cache may be set through the system property:
+ *   hudson.plugins.scala.executer.ScriptClassLoaders.maxSize
+ */
+object ScriptClassLoaders {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.ScriptClassLoaders"
+
+  /**
+   * The maximum number of classloaders held by the cache
+   */
+  val maxSize: Int = Integer.getInteger(s"$PropertyPrefix.maxSize", 16)
+
+  //access ordered, so that iteration starts at the least recently used
+  private val loaders = new java.util.LinkedHashMap[String, CachedClassLoader](16, 0.75f, true)
+
+  private val created = new AtomicLong
+  private val reused = new AtomicLong
+  private val closed = new AtomicLong
+
+  /**
+   * @return the number of classloaders that have been created
+   */
+  def createdCount = created.get
+
+  /**
+   * @return the number of times that a cached classloader was re-used
+   */
+  def reusedCount = reused.get
+
+  /**
+   * @return the number of classloaders that have been closed
+   */
+  def closedCount = closed.get
+
+  /**
+   * @return the number of classloaders currently held by the cache
+   */
+  def cachedCount : Int = synchronized {
+    loaders.size
+  }
+
+  /**
+   * @return the number of classes currently loaded by the JVM
+   */
+  def loadedClassCount : Int = ManagementFactory.getClassLoadingMXBean.getLoadedClassCount
+
+  /**
+   * @return the number of classes unloaded by the JVM since it started
+   */
+  def unloadedClassCount : Long = ManagementFactory.getClassLoadingMXBean.getUnloadedClassCount
+
+  /**
+   * @return the number of bytes used by class metadata, that is
+   *         the Metaspace, or the Permanent Generation before Java 8
+   */
+  def metaspaceUsed : Long = {
+    ManagementFactory.getMemoryPoolMXBeans.asScala
+      .filter(pool => pool.getName.contains("Metaspace") || pool.getName.contains("Perm Gen"))
+      .map(_.getUsage.getUsed)
+      .sum
+  }
+
+  /**
+   * Gets the classloader for a compilation, calls `f` with it and
+   * then returns it to the cache. A classloader which is evicted
+   * whilst it is in use is closed once its last user has finished.
+   *
+   * @param compilationKey The key of the compilation
+   * @param directory The directory which holds the compiled classes
+   * @param parent The parent of the classloader
+   * @param shared false to load from a classloader of this execution alone
+   */
+  def withClassLoader[T](compilationKey: String, directory: JFile, parent: ClassLoader, shared: Boolean = true)(f: ClassLoader => T) : T = {
+    def create = new URLClassLoader(Array(directory.toURI.toURL), parent)
+    if(shared) {
+      withCachedClassLoader(Seq(compilationKey, directory.getAbsolutePath).mkString("\u0000"), parent, create)(f)
+    } else {
+      created.incrementAndGet
+      val unshared = new CachedClassLoader(compilationKey, create)
+      try {
+        f(unshared.classLoader)
+      } finally {
+        close(unshared)
+      }
+    }
+  }
+
+  /**
+   * Gets the classloader for a compilation which is held in memory,
+   * see withClassLoader. Only scripts without further source files are
+   * compiled into memory, so the classloader is always shared.
+   *
+   * @param compiled The classes of the compilation
+   * @param parent The parent of the classloader
+   */
+  def withClassLoader[T](compiled: CompiledClasses, parent: ClassLoader)(f: ClassLoader => T) : T = {
+    withCachedClassLoader(Seq(compiled.key, "memory").mkString("\u0000"), parent, new ByteArrayClassLoader(compiled, parent))(f)
+  }
+
+  private def withCachedClassLoader[T](key: String, parent: ClassLoader, create: => ClassLoader)(f: ClassLoader => T) : T = {
+    val cached = checkout(key, parent, create)
+    try {
+      f(cached.classLoader)
+    } finally {
+      checkin(cached)
+    }
+  }
+
+  /**
+   * Evicts all of the classloaders
+   */
+  def clear() {
+    synchronized {
+      val all = loaders.values.asScala.toList
+      loaders.clear()
+      all.foreach(evicted)
+    }
+  }
+
+  private def checkout(key: String, parent: ClassLoader, create: => ClassLoader) : CachedClassLoader = synchronized {
+    //the same compilation run from a different parent, such as after a plugin is updated, needs a new classloader
+    Option(loaders.get(key)).filter(_.classLoader.getParent ne parent).foreach {
+      stale =>
+        loaders.remove(key)
+        evicted(stale)
+    }
+
+    val cached = Option(loaders.get(key)) match {
+      case Some(cached) =>
+        reused.incrementAndGet
+        cached
+      case None =>
+        created.incrementAndGet
+        val cached = new CachedClassLoader(key, create)
+        loaders.put(key, cached)
+        cached
+    }
+    cached.users += 1
+    evictOverQuota()
+    cached
+  }
+
+  private def checkin(cached: CachedClassLoader) {
+    synchronized {
+      cached.users -= 1
+      if(cached.evicted && cached.users == 0) {
+        close(cached)
+      }
+    }
+  }
+
+  private def evictOverQuota() {
+    val eldest = loaders.values.iterator
+    while(loaders.size > maxSize && eldest.hasNext) {
+      val cached = eldest.next
+      if(cached.users == 0) {
+        eldest.remove()
+        evicted(cached)
+      }
+    }
+  }
+
+  private def evicted(cached: CachedClassLoader) {
+    cached.evicted = true
+    if(cached.users == 0) {
+      close(cached)
+    }
+  }
+
+  /**
+   * URLClassLoader is only Closeable from Java 7
+   */
+  private def close(cached: CachedClassLoader) {
+    closed.incrementAndGet
+    cached.classLoader match {
+      case closeable: Closeable =>
+        try {
+          closeable.close()
+        } catch {
+          case ioe: IOException => //nothing more can be done with the classloader
+        }
+      case _ =>
+    }
+  }
+}
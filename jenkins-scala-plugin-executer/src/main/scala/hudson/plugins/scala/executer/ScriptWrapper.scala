@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+/**
+ * Wraps a script into an object with a main method, in
+ * the same way as the -Xscript option of scalac.
+ *
+ * scalac can only compile a single file as a script, so a script
+ * which is compiled together with further source files is wrapped
+ * before it is compiled. The wrapper is added to the first line of
+ * the script, so that the line numbers reported by the compiler still
+ * match those of the script.
+ */
+object ScriptWrapper {
+
+  /**
+   * @param objectName The name of the object to wrap the script in
+   * @param script The content of the script
+   *
+   * @return The source of the wrapped script
+   */
+  def wrap(objectName: String, script: String) : String = {
+    s"object $objectName { def main(argv: Array[String]): Unit = { val args = argv; new AnyRef { " + withoutHeader(script) + "\n} } }"
+  }
+
+  /**
+   * Removes a `#!` ... `!#` header from the script,
+   * leaving its lines in place but empty
+   */
+  private def withoutHeader(script: String) : String = {
+    val headerEnd = if(script.startsWith("#!")) script.indexOf("\n!#") else -1
+    if(headerEnd > -1) {
+      val bodyStart = script.indexOf('\n', headerEnd + 1) match {
+        case -1 => script.length
+        case lineEnd => lineEnd
+      }
+      script.substring(0, bodyStart).filter(_ == '\n') + script.substring(bodyStart)
+    } else {
+      script
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{File => JFile}
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Locks keyed by a string, which coordinate both the threads of
+ * this JVM and other processes.
+ *
+ * Keys are hashed onto a fixed number of stripes, each stripe being
+ * an in-JVM lock paired with a lock file. The in-JVM lock is always
+ * taken first, as a file lock is held on behalf of the whole JVM and
+ * cannot be used to exclude other threads. Using a fixed number of
+ * lock files means that they never need to be cleaned up.
+ *
+ * @param directory The directory to hold the lock files
+ * @param stripes The number of stripes
+ */
+class StripedFileLock(directory: JFile, stripes: Int = 64) {
+
+  private val locks = Array.fill(stripes)(new ReentrantLock)
+
+  def withLock[T](key: String)(f: => T) : T = {
+    val stripe = (key.hashCode & Int.MaxValue) % stripes
+    val lock = locks(stripe)
+    lock.lockInterruptibly()
+    try {
+      directory.mkdirs()
+      withFileLock(new JFile(directory, s"$stripe.lock"))(f)
+    } finally {
+      lock.unlock()
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala.executer
+
+import java.io.{File => JFile, FileInputStream, FileOutputStream, IOException, PrintStream}
+import java.net.{HttpURLConnection, URL}
+import java.security.{DigestInputStream, MessageDigest}
+import java.util.Properties
+import java.util.concurrent.TimeUnit
+import jenkins.model.Jenkins
+
+/**
+ * A script held by the UrlScriptCache
+ *
+ * @param hash The hex encoded SHA-256 hash of the content of the script
+ * @param file The file which holds the content of the script
+ */
+class CachedScript(val hash: String, val file: JFile)
+
+/**
+ * A cache of scripts fetched from URLs.
+ *
+ * Content is held by its hash in the `content` directory, so that
+ * identical scripts are only stored once, and for each URL the `urls`
+ * directory records the hash of its content along with the ETag and
+ * Last-Modified headers of the response. Once the time to live of a
+ * URL has passed its content is revalidated with a conditional GET,
+ * so that unchanged scripts are not transferred again.
+ *
+ * When `offline` is set the cached content is used without being
+ * revalidated, and when `offlineFallback` is set the cached content
+ * is used if the URL cannot be fetched.
+ *
+ * The cache is swept at most once every sweep interval, removing the
+ * URLs which have not been used for `maxAge`, and then the content
+ * which no URL refers to, such as the previous content of a URL that
+ * has changed. Content is only removed once it is older than the sweep
+ * interval, so that a build which is copying it is not disturbed.
+ *
+ * @param root The directory which holds the cache
+ * @param ttl The time in milliseconds for which fetched content is used without revalidation
+ * @param offline true if cached content should never be revalidated
+ * @param offlineFallback true if cached content should be used when the URL cannot be fetched
+ * @param maxAge The time in milliseconds after which a URL that has not been used is removed
+ */
+class UrlScriptCache(val root: JFile, val ttl: Long, val offline: Boolean, val offlineFallback: Boolean, val maxAge: Long) {
+
+  private val contentDirectory = new JFile(root, "content")
+  private val urlsDirectory = new JFile(root, "urls")
+
+  private val locks = new StripedFileLock(new JFile(root, "locks"))
+
+  //guards the content against the sweep, it is only ever taken after the lock of a URL
+  private val contentLock = new StripedFileLock(new JFile(root, "content-locks"), 1)
+  private val ContentLockKey = "content"
+
+  @volatile private var lastSweep = 0l
+
+  /**
+   * Gets the content of the URL, from the cache if
+   * it is still valid, or otherwise from the URL
+   *
+   * @param url The URL of the script
+   * @param log Receives messages about the use of the cache
+   *
+   * @return The cached script
+   */
+  @throws(classOf[IOException])
+  def fetch(url: URL, log: PrintStream) : CachedScript = {
+    val urlKey = sha256(url.toExternalForm)
+    val script = locks.withLock(urlKey) {
+      val metadataFile = new JFile(urlsDirectory, s"$urlKey.properties")
+      val metadata = readMetadata(metadataFile)
+      val cached = Option(metadata.getProperty("hash")).map(hash => new CachedScript(hash, new JFile(contentDirectory, hash))).filter(_.file.isFile)
+      val validated = Option(metadata.getProperty("validated")).map(_.toLong).getOrElse(0l)
+
+      cached match {
+        case Some(script) if(offline || System.currentTimeMillis - validated < ttl) =>
+          log.println(s"Using cached script for $url")
+          //the age of a URL is from when it was last used
+          metadataFile.setLastModified(System.currentTimeMillis)
+          script
+
+        case _ =>
+          try {
+            download(url, metadataFile, metadata, cached, log)
+          } catch {
+            case ioe: IOException if(offlineFallback && cached.nonEmpty) =>
+              log.println(s"[SCALA PLUGIN WARNING] Could not fetch $url (${ioe.getMessage}), using the cached script instead")
+              cached.get
+          }
+      }
+    }
+
+    if(System.currentTimeMillis - lastSweep > UrlScriptCache.SweepInterval) {
+      lastSweep = System.currentTimeMillis
+      sweep()
+    }
+    script
+  }
+
+  /**
+   * Removes the URLs which have not been used for the maximum age,
+   * and then the content which is no longer referred to by any URL
+   */
+  private def sweep() {
+    val now = System.currentTimeMillis
+    def stale(file: JFile, age: Long) = now - file.lastModified > age
+
+    for(metadataFile <- listFiles(urlsDirectory) if(metadataFile.getName.endsWith(".properties") && stale(metadataFile, maxAge))) {
+      locks.withLock(metadataFile.getName.stripSuffix(".properties")) {
+        //the URL may have been used since it was listed
+        if(stale(metadataFile, maxAge)) {
+          metadataFile.delete()
+        }
+      }
+    }
+
+    contentLock.withLock(ContentLockKey) {
+      val referenced = listFiles(urlsDirectory).filter(_.getName.endsWith(".properties")).flatMap(file => Option(readMetadata(file).getProperty("hash"))).toSet
+      for(content <- listFiles(contentDirectory) if(!referenced.contains(content.getName) && stale(content, UrlScriptCache.SweepInterval))) {
+        content.delete()
+      }
+    }
+  }
+
+  private def listFiles(directory: JFile) : Seq[JFile] = Option(directory.listFiles).map(_.toSeq).getOrElse(Seq.empty)
+
+  /**
+   * Fetches the URL, conditionally if we have cached
+   * content, and records the result in the metadata
+   */
+  private def download(url: URL, metadataFile: JFile, metadata: Properties, cached: Option[CachedScript], log: PrintStream) : CachedScript = {
+    val connection = url.openConnection
+    connection.setConnectTimeout(UrlScriptCache.timeout)
+    connection.setReadTimeout(UrlScriptCache.timeout)
+    connection.setUseCaches(false)
+
+    val http = connection match {
+      case http: HttpURLConnection => Some(http)
+      case _ => None
+    }
+
+    if(cached.nonEmpty) {
+      for(conditional <- http) {
+        Option(metadata.getProperty("etag")).foreach(conditional.setRequestProperty("If-None-Match", _))
+        Option(metadata.getProperty("lastModified")).foreach(conditional.setRequestProperty("If-Modified-Since", _))
+      }
+    }
+
+    val responseCode = http.map(_.getResponseCode).getOrElse(HttpURLConnection.HTTP_OK)
+    if(responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached.nonEmpty) {
+      log.println(s"Script at $url is not modified, using cached script")
+      metadata.setProperty("validated", System.currentTimeMillis.toString)
+      writeMetadata(metadataFile, metadata)
+      cached.get
+
+    } else if(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+      throw new IOException(s"Server returned HTTP response code $responseCode for $url")
+
+    } else {
+      log.println(s"Fetching script from $url")
+      store(connection.getInputStream) {
+        script =>
+          metadata.clear()
+          metadata.setProperty("url", url.toExternalForm)
+          metadata.setProperty("hash", script.hash)
+          metadata.setProperty("validated", System.currentTimeMillis.toString)
+          Option(connection.getHeaderField("ETag")).foreach(metadata.setProperty("etag", _))
+          Option(connection.getHeaderField("Last-Modified")).foreach(metadata.setProperty("lastModified", _))
+          writeMetadata(metadataFile, metadata)
+      }
+    }
+  }
+
+  /**
+   * Stores content by its hash, content that is already
+   * held by the cache is not stored again
+   *
+   * @param refer Records the reference to the stored content, which
+   *              is done before the sweep may see the content
+   */
+  private def store(is: java.io.InputStream)(refer: CachedScript => Unit) : CachedScript = {
+    contentDirectory.mkdirs()
+    val staging = new JFile(contentDirectory, s"${System.nanoTime}.tmp")
+    val digest = MessageDigest.getInstance("SHA-256")
+    try {
+      using(new DigestInputStream(is, digest)) {
+        dis =>
+          using(new FileOutputStream(staging)) {
+            os =>
+              val buf = new Array[Byte](8192)
+              var read = dis.read(buf)
+              while(read > -1) {
+                os.write(buf, 0, read)
+                read = dis.read(buf)
+              }
+          }
+      }
+
+      val hash = digest.digest.map("%02x".format(_)).mkString
+      val content = new JFile(contentDirectory, hash)
+      contentLock.withLock(ContentLockKey) {
+        if(content.isFile) {
+          content.setLastModified(System.currentTimeMillis)
+        } else if(!staging.renameTo(content)) {
+          throw new IOException(s"Could not move fetched script into the cache: $content")
+        }
+        val script = new CachedScript(hash, content)
+        refer(script)
+        script
+      }
+    } finally {
+      staging.delete()
+    }
+  }
+
+  private def readMetadata(metadataFile: JFile) : Properties = {
+    val metadata = new Properties
+    if(metadataFile.isFile) {
+      try {
+        using(new FileInputStream(metadataFile))(metadata.load)
+      } catch {
+        case ioe: IOException =>
+          //unreadable metadata just means that the URL is fetched again
+          metadata.clear()
+      }
+    }
+    metadata
+  }
+
+  private def writeMetadata(metadataFile: JFile, metadata: Properties) {
+    urlsDirectory.mkdirs()
+    val staging = new JFile(urlsDirectory, s"${metadataFile.getName}.tmp")
+    using(new FileOutputStream(staging)) {
+      os => metadata.store(os, null)
+    }
+    metadataFile.delete()
+    if(!staging.renameTo(metadataFile)) {
+      throw new IOException(s"Could not write script cache metadata: $metadataFile")
+    }
+  }
+
+  private def sha256(value: String) : String = {
+    MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8")).map("%02x".format(_)).mkString
+  }
+}
+
+/**
+ * The cache may be configured through the system properties:
+ *   hudson.plugins.scala.executer.UrlScriptCache.root
+ *   hudson.plugins.scala.executer.UrlScriptCache.ttl (milliseconds)
+ *   hudson.plugins.scala.executer.UrlScriptCache.timeout (milliseconds)
+ *   hudson.plugins.scala.executer.UrlScriptCache.offline (true to never revalidate cached scripts)
+ *   hudson.plugins.scala.executer.UrlScriptCache.offlineFallback (false to fail the build when a URL cannot be fetched)
+ *   hudson.plugins.scala.executer.UrlScriptCache.maxAge (milliseconds, after which an unused URL is removed)
+ *
+ * By default the cache is held in $JENKINS_HOME/scala-plugin/url-cache
+ */
+object UrlScriptCache {
+
+  private val PropertyPrefix = "hudson.plugins.scala.executer.UrlScriptCache"
+
+  val ttl: Long = java.lang.Long.getLong(s"$PropertyPrefix.ttl", TimeUnit.MINUTES.toMillis(1))
+
+  val timeout: Int = Integer.getInteger(s"$PropertyPrefix.timeout", TimeUnit.SECONDS.toMillis(30).toInt)
+
+  val offline: Boolean = java.lang.Boolean.getBoolean(s"$PropertyPrefix.offline")
+
+  val offlineFallback: Boolean = !"false".equals(System.getProperty(s"$PropertyPrefix.offlineFallback"))
+
+  val maxAge: Long = java.lang.Long.getLong(s"$PropertyPrefix.maxAge", TimeUnit.DAYS.toMillis(30))
+
+  /**
+   * The least time between sweeps of the cache
+   */
+  val SweepInterval: Long = TimeUnit.HOURS.toMillis(1)
+
+  /**
+   * The cache used by the controller
+   */
+  lazy val controllerCache : UrlScriptCache = {
+    val root = Option(System.getProperty(s"$PropertyPrefix.root")) match {
+      case Some(configuredRoot) => new JFile(configuredRoot)
+      case None => new JFile(Jenkins.getInstance.getRootDir, "scala-plugin" + JFile.separator + "url-cache")
+    }
+    new UrlScriptCache(root, ttl, offline, offlineFallback, maxAge)
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala
+
+import java.io.{Closeable, File => JFile, IOException, RandomAccessFile}
+
+package object executer {
+
+  @throws(classOf[IOException])
+  def using[C <: Closeable, T](is: C)(f: C => T): T = {
+    try {
+      f(is)
+    } finally {
+      is.close()
+    }
+  }
+
+  /**
+   * Holds an exclusive lock on the file whilst calling `f`. The lock
+   * is held on behalf of the whole JVM, so callers must also prevent
+   * other threads from locking the same file concurrently.
+   */
+  @throws(classOf[IOException])
+  def withFileLock[T](lockFile: JFile)(f: => T): T = {
+    using(new RandomAccessFile(lockFile, "rw")) {
+      raf =>
+        val lock = raf.getChannel.lock()
+        try {
+          f
+        } finally {
+          lock.release()
+        }
+    }
+  }
+
+  /**
+   * @return the named executable that sits alongside the scala
+   *         executable, e.g. `scalac` or `fsc`
+   */
+  def siblingExecutable(scalaExecutable: String, name: String) : String = {
+    """scala(\.bat)?$""".r.replaceFirstIn(scalaExecutable, name + "$1")
+  }
+}
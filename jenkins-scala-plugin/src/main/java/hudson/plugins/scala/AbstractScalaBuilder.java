@@ -37,18 +37,27 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
-import hudson.model.Computer;
 import hudson.model.Hudson;
+import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.DescriptorList;
+import hudson.util.FormValidation;
+import hudson.plugins.scala.executer.PhaseTimings;
 import java.io.IOException;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractScalaBuilder extends Builder {
@@ -57,6 +66,9 @@ public abstract class AbstractScalaBuilder extends Builder {
     private ScriptSource scriptSource;
     private String classpath;
     private String scriptParameters;
+    private boolean buildAvoidance;
+    private String inputs;
+    private String outputs;
 
     public AbstractScalaBuilder(final String scalaName, final ScriptSource scriptSource, final String classpath, final String scriptParameters) {
         this.scalaName = scalaName;
@@ -97,6 +109,30 @@ public abstract class AbstractScalaBuilder extends Builder {
     public void setScriptParameters(final String scriptParameters) {
         this.scriptParameters = scriptParameters;
     }
+
+    public boolean isBuildAvoidance() {
+        return buildAvoidance;
+    }
+
+    public void setBuildAvoidance(final boolean buildAvoidance) {
+        this.buildAvoidance = buildAvoidance;
+    }
+
+    public String getInputs() {
+        return inputs;
+    }
+
+    public void setInputs(final String inputs) {
+        this.inputs = inputs;
+    }
+
+    public String getOutputs() {
+        return outputs;
+    }
+
+    public void setOutputs(final String outputs) {
+        this.outputs = outputs;
+    }
     //</editor-fold>
 
     /**
@@ -130,25 +166,70 @@ public abstract class AbstractScalaBuilder extends Builder {
         return result;
     }
 
+    @Override
+    public Collection<? extends Action> getProjectActions(final AbstractProject<?, ?> project) {
+        final List<Action> actions = new ArrayList<Action>();
+        actions.add(new ScalaTimingsProjectAction(project));
+
+        //the precompilations of all of the Scala build steps are shown once per project
+        final List<AbstractScalaBuilder> scalaBuilders = ScalaPrecompiler.getScalaBuilders(project);
+        if(!scalaBuilders.isEmpty() && scalaBuilders.get(0) == this) {
+            actions.add(new ScalaPrecompilationAction(project));
+        }
+        return actions;
+    }
+
+    /**
+     * Builders which can compile their script without
+     * a build return true, so that it is compiled in the background
+     * when the project is saved, see ScalaPrecompiler
+     *
+     * @return true if the script can be compiled by precompile(TaskListener)
+     */
+    public boolean isPrecompilable() {
+        return false;
+    }
+
+    /**
+     * Compiles the script ahead of the first build, filling the
+     * compilation cache that the build will then find it in
+     *
+     * @param listener Receives the output of the compiler
+     *
+     * @return true if the script compiled
+     */
+    public boolean precompile(final TaskListener listener) throws IOException, InterruptedException {
+        return true;
+    }
+
     @Override
     public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) throws InterruptedException, IOException {
 
+        final PhaseTimings timings = new PhaseTimings();
+        ScalaMetrics.started();
+
         FilePath script = null;
         try {
             final EnvVars env = build.getEnvironment(listener);
             final FilePath workspace = build.getWorkspace();
-            script = getScriptSource().getScriptFile(workspace, build, listener);
+            long start = System.nanoTime();
+            if(isInlineScript()) {
+                //compiled from memory, so no script file is written
+                script = null;
+            } else {
+                script = getScriptSource().getScriptFile(workspace, build, listener);
+            }
+            final FilePath[] sources = getSourceFiles(workspace, build, listener);
+            timings.record(PhaseTimings.ScriptFetch(), PhaseTimings.millisSince(start));
 
+            start = System.nanoTime();
             final ScalaInstallation scalaInstallation = getScalaInstallation(listener.getLogger());
             final String scalaExecutable;
             final String scalaHome;
             if(scalaInstallation != null) {
                 listener.getLogger().println(String.format("Using Scala Installation '%s'", scalaInstallation.getName()));
                 scalaHome = scalaInstallation.getHome();
-                final String executable = scalaInstallation
-                        .forNode(Computer.currentComputer().getNode(), listener)
-                        .forEnvironment(env)
-                        .getExecutable(launcher, script.getChannel());
+                final String executable = ScalaInstallationCache.getExecutable(scalaInstallation, build.getBuiltOn(), env, launcher, listener);
                 if(executable != null) {
                     scalaExecutable = executable;
                 } else {
@@ -162,27 +243,98 @@ public abstract class AbstractScalaBuilder extends Builder {
                 listener.getLogger().println("[SCALA PLUGIN WARNING] Scala executable is null, please check your Scala configuration, trying fallback '" + defaultExecutable + "' instead.");
                 scalaExecutable = defaultExecutable;
             }
+            timings.record(PhaseTimings.Installation(), PhaseTimings.millisSince(start));
 
-            return perform(build, launcher, listener, scalaHome, scalaExecutable, script);
+            if(isBuildAvoidance()) {
+                if(getInputs() == null || getInputs().trim().isEmpty()) {
+                    listener.getLogger().println("[SCALA PLUGIN WARNING] Build avoidance is enabled, but no input files are configured, running the script");
+                } else if(getOutputs() == null || getOutputs().trim().isEmpty()) {
+                    listener.getLogger().println("[SCALA PLUGIN WARNING] Build avoidance is enabled, but no output files are configured, running the script");
+                } else {
+                    return performAvoidingBuild(build, launcher, listener, scalaHome, scalaExecutable, script, sources, timings);
+                }
+            }
+
+            return perform(build, launcher, listener, scalaHome, scalaExecutable, script, sources, timings);
         } catch(final IOException ioe) {
             Util.displayIOException(ioe, listener);
             ioe.printStackTrace(listener.fatalError("command execution failed"));
             return false;
         } finally {
-            //try nd delete the script source
+            ScalaMetrics.finished(timings);
+            ScalaTimingsAction.record(build, timings);
+            listener.getLogger().println("Scala timings: " + timings);
+
+            //try and delete the script file written for an inline script
             if(script != null && getScriptSource() instanceof StringScriptSource) {
-                //TODO re-enable!  make option in UI?
-//                try {
-//                    script.delete();
-//                } catch(final IOException ioe) {
-//                    Util.displayIOException(ioe, listener);
-//                    ioe.printStackTrace(listener.fatalError("Unable to delete script file: " + script));
-//                }
+                try {
+                    script.delete();
+                } catch(final IOException ioe) {
+                    Util.displayIOException(ioe, listener);
+                    ioe.printStackTrace(listener.fatalError("Unable to delete script file: " + script));
+                }
             }
         }
     }
     
-    protected abstract boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script) throws InterruptedException, IOException;
+    /**
+     * Restores the outputs of the previous run of the build step if its inputs
+     * are unchanged, otherwise runs the script and stores its outputs
+     */
+    private boolean performAvoidingBuild(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script, final FilePath[] sources, final PhaseTimings timings) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        final BuildAvoidance avoidance = BuildAvoidance.fingerprint(this, build, listener, scalaHome, script, sources, launcher.isUnix());
+        final boolean restored = avoidance.restore(listener);
+        timings.record(PhaseTimings.BuildAvoidance(), PhaseTimings.millisSince(start));
+        if(restored) {
+            return true;
+        }
+
+        final boolean result = perform(build, launcher, avoidance.capture(build, listener), scalaHome, scalaExecutable, script, sources, timings);
+        //the script may have marked the build as failed or unstable without failing the build step
+        final Result buildResult = build.getResult();
+        if(result && (buildResult == null || buildResult.isBetterOrEqualTo(Result.SUCCESS))) {
+            start = System.nanoTime();
+            avoidance.store(build, listener);
+            timings.record(PhaseTimings.BuildAvoidance(), PhaseTimings.millisSince(start));
+        }
+        return result;
+    }
+
+    /**
+     * @param script The script to run, or null for an inline script when the builder does not need a script file
+     * @param sources Further source files which are compiled together with the script
+     * @param timings Records the time spent in each phase of running the script
+     */
+    protected abstract boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script, final FilePath[] sources, final PhaseTimings timings) throws InterruptedException, IOException;
+
+    /**
+     * Builders which can compile an inline script from memory
+     * return false, so that it is not written to a script file
+     *
+     * @return true if an inline script must be written to a script file
+     */
+    protected boolean needsScriptFile() {
+        return true;
+    }
+
+    /**
+     * @return true if the script is inline and will be compiled from memory
+     */
+    protected boolean isInlineScript() {
+        return getScriptSource() instanceof StringScriptSource && !needsScriptFile();
+    }
+
+    /**
+     * Gets the source files, other than the script, that the script source is made up of
+     */
+    private FilePath[] getSourceFiles(final FilePath workspace, final AbstractBuild<?, ?> build, final BuildListener listener) throws InterruptedException, IOException {
+        if(getScriptSource() instanceof DirectoryScriptSource) {
+            return ((DirectoryScriptSource)getScriptSource()).getSourceFiles(workspace, build, listener);
+        } else {
+            return new FilePath[0];
+        }
+    }
     
     private String getDefaultScalaExecutable(final Launcher launcher) {
         if(launcher.isUnix()) {
@@ -201,6 +353,35 @@ public abstract class AbstractScalaBuilder extends Builder {
         //@CopyOnWrite
         //private volatile List<ScalaInstallation> installations2 = new ArrayList<ScalaInstallation>();
         
+        /**
+         * Configures the build avoidance of a builder from the optional
+         * "buildAvoidance" block of its form
+         */
+        protected void configureBuildAvoidance(final AbstractScalaBuilder builder, final JSONObject data) {
+            final JSONObject buildAvoidance = data.optJSONObject("buildAvoidance");
+            if(buildAvoidance != null) {
+                builder.setBuildAvoidance(true);
+                builder.setInputs(buildAvoidance.getString("inputs").trim());
+                builder.setOutputs(buildAvoidance.getString("outputs").trim());
+            }
+        }
+
+        public FormValidation doCheckInputs(@QueryParameter final String value) {
+            if(value == null || value.trim().isEmpty()) {
+                return FormValidation.error("The input files must be given, so that a change to them runs the script again");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+        public FormValidation doCheckOutputs(@QueryParameter final String value) {
+            if(value == null || value.trim().isEmpty()) {
+                return FormValidation.error("The output files must be given, so that they can be restored instead of running the script");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
         protected ScriptSource getScriptSource(final StaplerRequest req, final JSONObject data) throws FormException {
             final Object scriptSourceObject = data.get("scriptSource");
 
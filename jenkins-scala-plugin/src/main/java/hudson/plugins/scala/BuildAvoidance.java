@@ -0,0 +1,358 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import jenkins.model.Jenkins;
+
+/**
+ * Avoids running the script of a Scala build step whose inputs are unchanged.
+ *
+ * A build step which only transforms files of the workspace declares
+ * globs of its input and output files. The step is fingerprinted by
+ * its configuration, its script and source files and the content of
+ * its input files, and after the step succeeds its output files and
+ * console output are kept on the node in
+ * $NODE_ROOT/scala-plugin/build-avoidance. A later build with the same
+ * fingerprint restores them, rather than compiling and running the
+ * script.
+ *
+ * Only the latest run of each build step is kept, which is the one that
+ * an unchanged workspace will match.
+ */
+public class BuildAvoidance {
+
+    public static final String NODE_PATH = "scala-plugin/build-avoidance";
+
+    private static final String KEY = "key";
+    private static final String OUTPUTS = "outputs.tar.gz";
+    private static final String CONSOLE = "console.log";
+    private static final String BUILD = "build";
+
+    /**
+     * Version of the fingerprint, increment this if
+     * the composition of the fingerprint changes
+     */
+    private static final String KEY_VERSION = "2";
+
+    /**
+     * The most console output of a build step that is kept
+     */
+    private static final int MAX_CONSOLE_BYTES = Integer.getInteger(BuildAvoidance.class.getName() + ".maxConsoleBytes", 1024 * 1024);
+
+    private final FilePath workspace;
+    private final FilePath entry;
+    private final String outputs;
+    private final String key;
+    private ConsoleCapture console;
+
+    private BuildAvoidance(final FilePath workspace, final FilePath entry, final String outputs, final String key) {
+        this.workspace = workspace;
+        this.entry = entry;
+        this.outputs = outputs;
+        this.key = key;
+    }
+
+    /**
+     * Fingerprints a build step
+     *
+     * @param builder The build step
+     * @param build The build which runs the build step
+     * @param listener The build listener
+     * @param scalaHome The home of the Scala Installation, or null
+     * @param script The script file, or null for an inline script compiled from memory
+     * @param sources Further source files which are compiled together with the script
+     * @param unix true if the classpath entries are separated by ':' rather than ';'
+     */
+    public static BuildAvoidance fingerprint(final AbstractScalaBuilder builder, final AbstractBuild<?, ?> build, final BuildListener listener, final String scalaHome, final FilePath script, final FilePath[] sources, final boolean unix) throws IOException, InterruptedException {
+        final FilePath workspace = build.getWorkspace();
+        final EnvVars env = build.getEnvironment(listener);
+
+        final MessageDigest digest = sha256();
+        update(digest, KEY_VERSION);
+        //the configuration includes any inline script, and the globs
+        update(digest, Jenkins.XSTREAM2.toXML(builder));
+        final String classpath = env.expand(nullToEmpty(builder.getClasspath()));
+        update(digest, classpath);
+        //the content of the classpath entries, as a changed jar or class changes what the script does
+        for(final String classpathEntry : classpath.split(unix ? ":" : ";")) {
+            if(!classpathEntry.trim().isEmpty()) {
+                update(digest, fingerprint(new FilePath(workspace, classpathEntry.trim())));
+            }
+        }
+        update(digest, env.expand(nullToEmpty(builder.getScriptParameters())));
+        update(digest, nullToEmpty(scalaHome));
+        if(script != null) {
+            update(digest, script.digest());
+        }
+        for(final FilePath source : sources) {
+            update(digest, source.getName());
+            update(digest, source.digest());
+        }
+        //the outputs are excluded, as they are restored into the workspace and would otherwise change the fingerprint
+        update(digest, workspace.act(new InputsFingerprint(builder.getInputs(), builder.getOutputs())));
+
+        //the latest run of each build step of a job
+        final int step = ScalaPrecompiler.getScalaBuilders(build.getProject()).indexOf(builder);
+        final MessageDigest lineage = sha256();
+        update(lineage, build.getProject().getFullName());
+        update(lineage, Integer.toString(step));
+
+        FilePath nodeRoot = build.getBuiltOn() == null ? null : build.getBuiltOn().getRootPath();
+        if(nodeRoot == null) {
+            nodeRoot = workspace;
+        }
+        final FilePath entry = nodeRoot.child(NODE_PATH).child(hex(lineage.digest()));
+
+        return new BuildAvoidance(workspace, entry, builder.getOutputs(), hex(digest.digest()));
+    }
+
+    /**
+     * Restores the outputs and the console output of the latest
+     * run of the build step, if it had the same fingerprint
+     *
+     * @return true if the outputs were restored, false if the build step must be run
+     */
+    public boolean restore(final BuildListener listener) throws InterruptedException {
+        try {
+            final FilePath keyFile = entry.child(KEY);
+            if(!keyFile.exists() || !key.equals(keyFile.readToString().trim())) {
+                listener.getLogger().println("[SCALA PLUGIN] Inputs have changed, running the script");
+                return false;
+            }
+
+            listener.getLogger().println("[SCALA PLUGIN] Inputs are unchanged since " + entry.child(BUILD).readToString().trim() + ", restoring its outputs instead of running the script");
+            workspace.untarFrom(entry.child(OUTPUTS).read(), FilePath.TarCompression.GZIP);
+            entry.child(CONSOLE).copyTo(listener.getLogger());
+            listener.getLogger().flush();
+            return true;
+        } catch(final IOException ioe) {
+            ioe.printStackTrace(listener.error("[SCALA PLUGIN WARNING] Unable to restore the outputs of the previous run, running the script"));
+            return false;
+        }
+    }
+
+    /**
+     * @return a listener which also captures the console output of the build step, so that it can be stored
+     */
+    public BuildListener capture(final AbstractBuild<?, ?> build, final BuildListener listener) {
+        console = new ConsoleCapture(listener.getLogger(), MAX_CONSOLE_BYTES);
+        return new StreamBuildListener(console, build.getCharset());
+    }
+
+    /**
+     * Stores the outputs and the console output of a successful run of the build step
+     */
+    public void store(final AbstractBuild<?, ?> build, final BuildListener listener) throws InterruptedException {
+        final FilePath staging = entry.getParent().child(entry.getName() + "." + build.getNumber() + ".tmp");
+        try {
+            staging.deleteRecursive();
+            staging.mkdirs();
+
+            final OutputStream os = new GZIPOutputStream(staging.child(OUTPUTS).write());
+            final int count;
+            try {
+                count = workspace.tar(os, outputs);
+            } finally {
+                os.close();
+            }
+
+            final OutputStream consoleOs = staging.child(CONSOLE).write();
+            try {
+                console.writeTo(consoleOs);
+            } finally {
+                consoleOs.close();
+            }
+            staging.child(BUILD).write(build.getFullDisplayName(), "UTF-8");
+
+            //written last, so that an incomplete entry is never matched
+            staging.child(KEY).write(key, "UTF-8");
+
+            entry.deleteRecursive();
+            staging.renameTo(entry);
+            listener.getLogger().println("[SCALA PLUGIN] Stored " + count + " output files for build avoidance");
+        } catch(final IOException ioe) {
+            ioe.printStackTrace(listener.error("[SCALA PLUGIN WARNING] Unable to store the outputs for build avoidance"));
+            try {
+                staging.deleteRecursive();
+            } catch(final IOException e) {
+                //ignore, the next run replaces it
+            }
+        }
+    }
+
+    /**
+     * Fingerprints a classpath entry by its content, for a directory
+     * by the content of every file within it
+     */
+    private static String fingerprint(final FilePath classpathEntry) throws IOException, InterruptedException {
+        if(!classpathEntry.exists()) {
+            return "missing";
+        } else if(classpathEntry.isDirectory()) {
+            return "dir:" + classpathEntry.act(new InputsFingerprint("**/*", null));
+        } else {
+            return classpathEntry.digest();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(final NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        } catch(final java.io.UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+        digest.update((byte)0);
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder();
+        for(final byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Fingerprints the input files on the node of the workspace,
+     * by their path relative to the workspace and their content
+     *
+     * The excluded files are never fingerprinted, even if the inputs match them
+     */
+    private static class InputsFingerprint implements FilePath.FileCallable<String> {
+        private static final long serialVersionUID = 1l;
+
+        private final String inputs;
+        private final String excludes;
+
+        public InputsFingerprint(final String inputs, final String excludes) {
+            this.inputs = inputs;
+            this.excludes = excludes;
+        }
+
+        @Override
+        public String invoke(final File workspace, final VirtualChannel channel) throws IOException, InterruptedException {
+            final String root = workspace.getPath() + File.separator;
+
+            //a stable order, so that the same inputs always produce the same fingerprint
+            final Map<String, String> digests = new TreeMap<String, String>();
+            if(inputs == null || inputs.trim().isEmpty()) {
+                throw new IOException("No input files are configured");
+            }
+
+            for(final FilePath input : new FilePath(workspace).list(inputs, excludes)) {
+                digests.put(input.getRemote().substring(root.length()).replace('\\', '/'), input.digest());
+            }
+
+            final MessageDigest digest = sha256();
+            for(final Map.Entry<String, String> input : digests.entrySet()) {
+                update(digest, input.getKey());
+                update(digest, input.getValue());
+            }
+            return hex(digest.digest());
+        }
+    }
+
+    /**
+     * Copies the console output of the build step to the build log,
+     * keeping up to a limited number of bytes of it
+     */
+    private static class ConsoleCapture extends OutputStream {
+        private final OutputStream log;
+        private final int limit;
+        private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private boolean truncated = false;
+
+        public ConsoleCapture(final OutputStream log, final int limit) {
+            this.log = log;
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized void write(final int b) throws IOException {
+            log.write(b);
+            if(captured.size() < limit) {
+                captured.write(b);
+            } else {
+                truncated = true;
+            }
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+            log.write(b, off, len);
+            final int capture = Math.min(len, limit - captured.size());
+            captured.write(b, off, capture);
+            if(capture < len) {
+                truncated = true;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            log.flush();
+        }
+
+        public synchronized void writeTo(final OutputStream os) throws IOException {
+            captured.writeTo(os);
+            if(truncated) {
+                os.write(String.format("%n[SCALA PLUGIN] The console output was truncated at %d bytes%n", limit).getBytes("UTF-8"));
+            }
+        }
+    }
+}
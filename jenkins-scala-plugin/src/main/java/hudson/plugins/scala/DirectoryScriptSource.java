@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * A script that is made up of a directory of Scala source files.
+ *
+ * The main script is run as a script, whilst the other source files
+ * may contain classes, traits and objects which are used by the main
+ * script. All of the files are compiled together as a single unit.
+ */
+public class DirectoryScriptSource implements ScriptSource {
+
+    public static final String DEFAULT_INCLUDES = "**/*.scala";
+    public static final String DEFAULT_MAIN_SCRIPT = "main.scala";
+
+    private String directory;
+    private String includes;
+    private String mainScript;
+
+    @DataBoundConstructor
+    public DirectoryScriptSource(final String directory, final String includes, final String mainScript) {
+        this.directory = directory;
+        this.includes = includes;
+        this.mainScript = mainScript;
+    }
+
+    /**
+     * The main script is the file that is run
+     *
+     * @param projectWorkspace Project workspace
+     * @return Path to the main script file
+     */
+    @Override
+    public FilePath getScriptFile(final FilePath projectWorkspace) {
+        return new FilePath(projectWorkspace, directory).child(getMainScriptOrDefault());
+    }
+
+    /**
+     * Able to load script when the directory path contains parameters
+     *
+     * @param projectWorkspace Project workspace
+     * @param build The build is used to obtain environment variables
+     * @param listener build listener needed by Environment
+     * @return Path to the main script file
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Override
+    public FilePath getScriptFile(final FilePath projectWorkspace, final AbstractBuild<?, ?> build, final BuildListener listener) throws InterruptedException, IOException {
+        return getDirectory(projectWorkspace, build, listener).child(getMainScriptOrDefault());
+    }
+
+    /**
+     * Finds the source files that are compiled together with the main script
+     *
+     * @param projectWorkspace Project workspace
+     * @param build The build is used to obtain environment variables
+     * @param listener build listener needed by Environment
+     * @return The source files excluding the main script, in order of their path
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public FilePath[] getSourceFiles(final FilePath projectWorkspace, final AbstractBuild<?, ?> build, final BuildListener listener) throws InterruptedException, IOException {
+        final FilePath scriptFile = getScriptFile(projectWorkspace, build, listener);
+
+        final List<FilePath> sourceFiles = new ArrayList<FilePath>();
+        for(final FilePath sourceFile : getDirectory(projectWorkspace, build, listener).list(getIncludesOrDefault())) {
+            if(!sourceFile.getRemote().equals(scriptFile.getRemote())) {
+                sourceFiles.add(sourceFile);
+            }
+        }
+
+        //a stable order, so that the same sources always produce the same compilation
+        Collections.sort(sourceFiles, new Comparator<FilePath>() {
+            @Override
+            public int compare(final FilePath o1, final FilePath o2) {
+                return o1.getRemote().compareTo(o2.getRemote());
+            }
+        });
+
+        return sourceFiles.toArray(new FilePath[sourceFiles.size()]);
+    }
+
+    private FilePath getDirectory(final FilePath projectWorkspace, final AbstractBuild<?, ?> build, final BuildListener listener) throws InterruptedException, IOException {
+        final EnvVars env = build.getEnvironment(listener);
+        return new FilePath(projectWorkspace, env.expand(this.directory));
+    }
+
+    private String getIncludesOrDefault() {
+        if(includes == null || includes.trim().isEmpty()) {
+            return DEFAULT_INCLUDES;
+        } else {
+            return includes.trim();
+        }
+    }
+
+    private String getMainScriptOrDefault() {
+        if(mainScript == null || mainScript.trim().isEmpty()) {
+            return DEFAULT_MAIN_SCRIPT;
+        } else {
+            return mainScript.trim();
+        }
+    }
+
+    //<editor-fold desc="getter/setter">
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(final String directory) {
+        this.directory = directory;
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(final String includes) {
+        this.includes = includes;
+    }
+
+    public String getMainScript() {
+        return mainScript;
+    }
+
+    public void setMainScript(final String mainScript) {
+        this.mainScript = mainScript;
+    }
+    //</editor-fold>
+
+    @Override
+    public Descriptor<ScriptSource> getDescriptor() {
+        return DESCRIPTOR;
+    }
+
+    @Extension
+    public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
+
+    public static class DescriptorImpl extends Descriptor<ScriptSource> {
+
+        public DescriptorImpl() {
+            super(DirectoryScriptSource.class);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Directory of Scala source files";
+        }
+
+        public FormValidation doCheckMainScript(final StaplerRequest req,
+            @AncestorInPath final AbstractProject context,
+            @QueryParameter final String value) {
+
+            if(value != null && !value.trim().isEmpty() && !value.trim().endsWith(".scala")) {
+                return FormValidation.warning("The main script is expected to be a .scala file");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+        @Override
+        public ScriptSource newInstance(final StaplerRequest req, final JSONObject formData) {
+            return req.bindJSON(DirectoryScriptSource.class, formData);
+        }
+    }
+}
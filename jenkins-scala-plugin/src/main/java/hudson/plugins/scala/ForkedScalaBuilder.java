@@ -43,22 +43,29 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import hudson.plugins.scala.executer.ForkedScalaExecutor;
+import hudson.plugins.scala.executer.PhaseTimings;
 
 public class ForkedScalaBuilder extends AbstractScalaBuilder {
     private String parameters;
     private boolean debug;
     private boolean suspend;
     private String port;
+    private boolean compileDaemon;
+    private boolean precompile;
+    private boolean classDataSharing;
 
     public static String DEFAULT_PORT = "4000";
     
     @DataBoundConstructor
-    public ForkedScalaBuilder(final String scalaName, final ScriptSource scriptSource, final String parameters, final String classpath, final String scriptParameters, final boolean debug, final boolean suspend, final String port) {
+    public ForkedScalaBuilder(final String scalaName, final ScriptSource scriptSource, final String parameters, final String classpath, final String scriptParameters, final boolean debug, final boolean suspend, final String port, final boolean compileDaemon, final boolean precompile, final boolean classDataSharing) {
         super(scalaName, scriptSource, classpath, scriptParameters);
         this.parameters = parameters;
         this.debug = debug;
         this.suspend = suspend;
         this.port = port;
+        this.compileDaemon = compileDaemon;
+        this.precompile = precompile;
+        this.classDataSharing = classDataSharing;
     }
     
     //<editor-fold desc="getter/setter">
@@ -93,11 +100,35 @@ public class ForkedScalaBuilder extends AbstractScalaBuilder {
     public void setPort(final String port) {
         this.port = port;
     }
+
+    public boolean isCompileDaemon() {
+        return compileDaemon;
+    }
+
+    public void setCompileDaemon(final boolean compileDaemon) {
+        this.compileDaemon = compileDaemon;
+    }
+
+    public boolean isPrecompile() {
+        return precompile;
+    }
+
+    public void setPrecompile(final boolean precompile) {
+        this.precompile = precompile;
+    }
+
+    public boolean isClassDataSharing() {
+        return classDataSharing;
+    }
+
+    public void setClassDataSharing(final boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
     //</editor-fold>
 
     @Override
-    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script) throws InterruptedException, IOException {
-        return new ForkedScalaExecutor().execute(build, launcher, listener, scalaHome, scalaExecutable, script, getParameters(), getClasspath(), getScriptParameters(), debug, suspend, Integer.parseInt(port));
+    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script, final FilePath[] sources, final PhaseTimings timings) throws InterruptedException, IOException {
+        return new ForkedScalaExecutor().execute(build, launcher, listener, scalaHome, scalaExecutable, script, sources, getParameters(), getClasspath(), getScriptParameters(), debug, suspend, Integer.parseInt(port), compileDaemon, precompile, classDataSharing, timings);
     }
     
     @Override
@@ -151,6 +182,9 @@ public class ForkedScalaBuilder extends AbstractScalaBuilder {
             final String classpath = data.getString("classPath").trim();
             final String scriptParameters = data.getString("scriptParameters");
             final boolean debug = data.has("debug");
+            final boolean compileDaemon = data.optBoolean("compileDaemon");
+            final boolean precompile = data.optBoolean("precompile");
+            final boolean classDataSharing = data.optBoolean("classDataSharing");
             final boolean suspend;
             final String port;
             if(debug) {
@@ -162,7 +196,9 @@ public class ForkedScalaBuilder extends AbstractScalaBuilder {
                 port = DEFAULT_PORT;
             }
             
-            return new ForkedScalaBuilder(scalaName, source, params, classpath, scriptParameters, debug, suspend, port);
+            final ForkedScalaBuilder builder = new ForkedScalaBuilder(scalaName, source, params, classpath, scriptParameters, debug, suspend, port, compileDaemon, precompile, classDataSharing);
+            configureBuildAvoidance(builder, data);
+            return builder;
         }
         
         @Override
@@ -34,12 +34,14 @@ package hudson.plugins.scala;
 
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
+import hudson.model.TaskListener;
 import hudson.tasks.Builder;
 import java.io.IOException;
 import jenkins.model.Jenkins;
@@ -47,18 +49,98 @@ import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
+import hudson.plugins.scala.executer.CompileProfiler;
 import hudson.plugins.scala.executer.InVmScalaExecuter;
+import hudson.plugins.scala.executer.PhaseTimings;
 
 public class InVmScalaBuilder extends AbstractScalaBuilder {
 
+    private boolean runOnAgent;
+    private boolean profileCompilation;
+    private int priority;
+    private boolean compileInMemory;
+
     @DataBoundConstructor
-    public InVmScalaBuilder(final String scalaName, final ScriptSource scriptSource, final String classpath, final String scriptParameters) {
+    public InVmScalaBuilder(final String scalaName, final ScriptSource scriptSource, final String classpath, final String scriptParameters, final boolean runOnAgent, final boolean profileCompilation, final int priority, final boolean compileInMemory) {
         super(scalaName, scriptSource, classpath, scriptParameters);
+        this.runOnAgent = runOnAgent;
+        this.profileCompilation = profileCompilation;
+        this.priority = priority;
+        this.compileInMemory = compileInMemory;
+    }
+
+    //<editor-fold desc="getter/setter">
+    public boolean isRunOnAgent() {
+        return runOnAgent;
+    }
+
+    public void setRunOnAgent(final boolean runOnAgent) {
+        this.runOnAgent = runOnAgent;
+    }
+
+    public boolean isProfileCompilation() {
+        return profileCompilation;
     }
+
+    public void setProfileCompilation(final boolean profileCompilation) {
+        this.profileCompilation = profileCompilation;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(final int priority) {
+        this.priority = priority;
+    }
+
+    public boolean isCompileInMemory() {
+        return compileInMemory;
+    }
+
+    public void setCompileInMemory(final boolean compileInMemory) {
+        this.compileInMemory = compileInMemory;
+    }
+    //</editor-fold>
     
     @Override
-    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script) throws InterruptedException, IOException {
-        return new InVmScalaExecuter().execute(build, launcher, listener, scalaHome, script, getClasspath(), getScriptParameters());
+    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener, final String scalaHome, final String scalaExecutable, final FilePath script, final FilePath[] sources, final PhaseTimings timings) throws InterruptedException, IOException {
+        final CompileProfiler profiler = profileCompilation ? new CompileProfiler() : null;
+        try {
+            if(isInlineScript()) {
+                final String inlineScript = ((StringScriptSource)getScriptSource()).getScript();
+                return new InVmScalaExecuter().executeInline(build, launcher, listener, scalaHome, inlineScript, getClasspath(), getScriptParameters(), runOnAgent, timings, profiler, priority, compileInMemory);
+            } else {
+                return new InVmScalaExecuter().execute(build, launcher, listener, scalaHome, script, sources, getClasspath(), getScriptParameters(), runOnAgent, timings, profiler, priority, compileInMemory);
+            }
+        } finally {
+            if(profiler != null && profiler.getProfile() != null) {
+                ScalaCompileProfileAction.record(build, profiler.getProfile());
+            }
+        }
+    }
+
+    /**
+     * Inline scripts are compiled on the controller when the project is saved,
+     * unless they run on an agent, which looks them up in its own store
+     */
+    @Override
+    public boolean isPrecompilable() {
+        return isInlineScript() && !isRunOnAgent();
+    }
+
+    @Override
+    public boolean precompile(final TaskListener listener) throws IOException, InterruptedException {
+        final String inlineScript = ((StringScriptSource)getScriptSource()).getScript();
+        return new InVmScalaExecuter().precompileInline(listener, inlineScript, getClasspath(), !Functions.isWindows(), compileInMemory);
+    }
+
+    /**
+     * Inline scripts are compiled from memory
+     */
+    @Override
+    protected boolean needsScriptFile() {
+        return false;
     }
     
     @Override
@@ -93,7 +175,13 @@ public class InVmScalaBuilder extends AbstractScalaBuilder {
             final String scalaName = data.getString("scalaName");
             final String classpath = data.getString("classPath").trim();
             final String scriptParameters = data.getString("scriptParameters");
-            return new InVmScalaBuilder(scalaName, source, classpath, scriptParameters);
+            final boolean runOnAgent = data.optBoolean("runOnAgent");
+            final boolean profileCompilation = data.optBoolean("profileCompilation");
+            final int priority = data.optInt("priority", 0);
+            final boolean compileInMemory = data.optBoolean("compileInMemory");
+            final InVmScalaBuilder builder = new InVmScalaBuilder(scalaName, source, classpath, scriptParameters, runOnAgent, profileCompilation, priority, compileInMemory);
+            configureBuildAvoidance(builder, data);
+            return builder;
         }
         
         @Override
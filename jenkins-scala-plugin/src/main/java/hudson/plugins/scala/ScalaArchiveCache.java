@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * A cache on the controller of the Scala distribution archives
+ * downloaded by the ScalaInstaller.
+ *
+ * Each archive is downloaded once, however many agents install it,
+ * and is kept in $JENKINS_HOME/scala-plugin/installers alongside the
+ * SHA-256 checksum that was calculated as it was downloaded. The
+ * checksum is verified each time the archive is used, and a corrupt
+ * archive is downloaded again. An interrupted download is resumed
+ * with a HTTP Range request where the server supports it, which is
+ * conditional through If-Range on the ETag, or the Last-Modified date,
+ * of the first response, so that a download is never resumed from a
+ * different version of the archive.
+ */
+public class ScalaArchiveCache {
+
+    private static final int TIMEOUT = (int)TimeUnit.SECONDS.toMillis(30);
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private final File root;
+
+    public ScalaArchiveCache(final File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return The cache of the controller
+     */
+    public static ScalaArchiveCache getInstance() {
+        return new ScalaArchiveCache(new File(Jenkins.getInstance().getRootDir(), "scala-plugin" + File.separator + "installers"));
+    }
+
+    /**
+     * Gets the archive for the URL, downloading it if it is not cached
+     *
+     * @param url The URL of the archive
+     * @param log The log to report progress to
+     *
+     * @return The cached archive
+     */
+    public File fetch(final URL url, final TaskListener log) throws IOException {
+        final String urlKey = sha256(url.toExternalForm());
+        final Object lock = getLock(urlKey);
+        synchronized(lock) {
+            final File directory = new File(root, urlKey);
+            final File archive = new File(directory, getArchiveName(url));
+            final File checksum = new File(directory, archive.getName() + ".sha256");
+
+            if(archive.isFile() && checksum.isFile()) {
+                if(readString(checksum).equals(sha256(archive))) {
+                    log.getLogger().println("Using cached Scala distribution: " + archive);
+                    return archive;
+                } else {
+                    log.getLogger().println("[SCALA PLUGIN WARNING] Checksum of cached Scala distribution does not match, downloading it again: " + archive);
+                    archive.delete();
+                    checksum.delete();
+                }
+            }
+
+            if(!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory: " + directory);
+            }
+
+            final File partial = new File(directory, archive.getName() + ".part");
+            final File validator = new File(directory, partial.getName() + ".validator");
+            download(url, partial, validator, log.getLogger());
+
+            writeString(checksum, sha256(partial));
+            if(!partial.renameTo(archive)) {
+                throw new IOException("Could not move downloaded Scala distribution into the cache: " + archive);
+            }
+            validator.delete();
+            return archive;
+        }
+    }
+
+    /**
+     * Downloads the URL into the partial file, resuming from the end
+     * of the partial file if a previous download was interrupted
+     *
+     * @param validator The file which holds the validator of the response that the partial file was started from
+     */
+    private void download(final URL url, final File partial, final File validator, final PrintStream logger) throws IOException {
+        final URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+
+        //without a validator there is no way to tell that the partial file is of the same version of the archive
+        final String resumeValidator = validator.isFile() ? readString(validator) : "";
+        final long resumeFrom = resumeValidator.isEmpty() ? 0 : partial.length();
+        if(resumeFrom > 0 && connection instanceof HttpURLConnection) {
+            connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+            connection.setRequestProperty("If-Range", resumeValidator);
+        }
+
+        final boolean append;
+        if(connection instanceof HttpURLConnection) {
+            final int responseCode = ((HttpURLConnection)connection).getResponseCode();
+            if(responseCode == HTTP_RANGE_NOT_SATISFIABLE && resumeFrom > 0) {
+                //the partial file is unusable, so start again from the beginning
+                discard(partial, validator);
+                download(url, partial, validator, logger);
+                return;
+            } else if(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException("Server returned HTTP response code " + responseCode + " for " + url);
+            }
+
+            final String responseValidator = getValidator(connection);
+            if(resumeFrom > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL && !resumeValidator.equals(responseValidator)) {
+                //the archive has changed since the partial file was started, so start again from the beginning
+                ((HttpURLConnection)connection).disconnect();
+                discard(partial, validator);
+                download(url, partial, validator, logger);
+                return;
+            }
+
+            append = resumeFrom > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL;
+            if(!append) {
+                //the whole archive is sent, either as the archive has changed or the server does not support ranges
+                discard(partial, validator);
+                if(responseValidator != null) {
+                    writeString(validator, responseValidator);
+                }
+            }
+        } else {
+            append = false;
+        }
+
+        if(append) {
+            logger.println("Resuming download of Scala distribution from " + url + " at byte " + resumeFrom);
+        } else {
+            logger.println("Downloading Scala distribution from " + url);
+        }
+
+        final long expectedLength = connection.getContentLength();
+        final InputStream is = connection.getInputStream();
+        try {
+            final OutputStream os = new FileOutputStream(partial, append);
+            try {
+                final byte[] buf = new byte[8192];
+                int read;
+                while((read = is.read(buf)) > -1) {
+                    os.write(buf, 0, read);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+
+        //a truncated download is kept so that it may be resumed
+        if(expectedLength > -1 && partial.length() != (append ? resumeFrom : 0) + expectedLength) {
+            throw new IOException("Download of Scala distribution from " + url + " is incomplete");
+        }
+    }
+
+    /**
+     * Gets the validator of a response that an If-Range request may be
+     * conditional on, that is its ETag unless that is weak, or else its
+     * Last-Modified date
+     *
+     * @return The validator, or null if the response has none
+     */
+    private static String getValidator(final URLConnection connection) {
+        final String etag = connection.getHeaderField("ETag");
+        if(etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static void discard(final File partial, final File validator) {
+        partial.delete();
+        validator.delete();
+    }
+
+    private static Object getLock(final String key) {
+        final Object lock = new Object();
+        final Object existing = LOCKS.putIfAbsent(key, lock);
+        return existing != null ? existing : lock;
+    }
+
+    private static String getArchiveName(final URL url) {
+        final String path = url.getPath();
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.isEmpty() ? "scala" : name;
+    }
+
+    private static String sha256(final File file) throws IOException {
+        final MessageDigest digest = newSha256();
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buf = new byte[8192];
+            int read;
+            while((read = is.read(buf)) > -1) {
+                digest.update(buf, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String sha256(final String value) throws IOException {
+        return toHex(newSha256().digest(value.getBytes("UTF-8")));
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(final NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae.getMessage());
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder();
+        for(final byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static String readString(final File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            final byte[] buf = new byte[(int)file.length()];
+            int offset = 0;
+            int read;
+            while(offset < buf.length && (read = is.read(buf, offset, buf.length - offset)) > -1) {
+                offset += read;
+            }
+            return new String(buf, 0, offset, "UTF-8").trim();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void writeString(final File file, final String value) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(value.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.plugins.scala.executer.CompileProfile;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.RunAction2;
+
+/**
+ * The profiles of the compilations of the
+ * Scala scripts of a build, one for each profiled build step
+ */
+public class ScalaCompileProfileAction implements RunAction2 {
+
+    private final List<CompileProfile> profiles = new ArrayList<CompileProfile>();
+
+    private transient Run<?, ?> build;
+
+    /**
+     * Records the profile of a build step on its build
+     *
+     * @param build The build that the step ran in
+     * @param profile The profile of the compilation of the step
+     */
+    static void record(final AbstractBuild<?, ?> build, final CompileProfile profile) {
+        final ScalaCompileProfileAction action;
+        synchronized(ScalaCompileProfileAction.class) {
+            final ScalaCompileProfileAction existing = build.getAction(ScalaCompileProfileAction.class);
+            if(existing != null) {
+                action = existing;
+            } else {
+                action = new ScalaCompileProfileAction();
+                build.addAction(action);
+            }
+        }
+        action.add(profile);
+    }
+
+    private synchronized void add(final CompileProfile profile) {
+        profiles.add(profile);
+    }
+
+    //<editor-fold desc="getter/setter">
+    public Run<?, ?> getBuild() {
+        return build;
+    }
+
+    public synchronized List<CompileProfile> getProfiles() {
+        return new ArrayList<CompileProfile>(profiles);
+    }
+    //</editor-fold>
+
+    @Override
+    public void onAttached(final Run<?, ?> r) {
+        this.build = r;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> r) {
+        this.build = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Scala Compilation Profile";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "scalaCompilationProfile";
+    }
+}
@@ -66,10 +66,12 @@ public class ScalaInstallation extends ToolInstallation implements EnvironmentSp
      * Gets the executable path of this groovy installation on the given target system.
      */
     public String getExecutable(final Launcher launcher, final VirtualChannel channel) throws IOException, InterruptedException {
+        //the launcher itself cannot be sent over the channel
+        final boolean unix = launcher.isUnix();
         return channel.call(new Callable<String, IOException>() {
             @Override
             public String call() throws IOException {
-                final File exe = getExePath("scala", launcher.isUnix());
+                final File exe = getExePath("scala", unix);
                 if(exe.exists()) {
                     return exe.getPath();
                 }
@@ -127,6 +129,7 @@ public class ScalaInstallation extends ToolInstallation implements EnvironmentSp
         @Override                                                                                                                              
         public void setInstallations(final ScalaInstallation... installations) {                                                                    
             this.installations = installations;
+            ScalaInstallationCache.invalidate();
             save();
         }                                                                                                                                      
     }       
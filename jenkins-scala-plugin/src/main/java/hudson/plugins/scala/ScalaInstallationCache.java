@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.slaves.ComputerListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the resolution of a Scala Installation on each node.
+ *
+ * Resolving an installation for a node may run its tool installers,
+ * and finding its executable requires a call over the channel of the
+ * node, so without a cache every build step pays for those round-trips.
+ *
+ * The home of an installation is cached per (installation, node), and its
+ * executable per (node, home after expanding the environment). Once the time
+ * to live of an executable has passed it is revalidated by checking that it
+ * still exists, rather than by resolving the installation again, unless
+ * it no longer exists.
+ *
+ * All entries are invalidated when the installations are reconfigured, and
+ * the entries of a node are invalidated when its agent comes online.
+ *
+ * The time to live may be set through the system property:
+ *   hudson.plugins.scala.ScalaInstallationCache.ttl (milliseconds)
+ */
+public final class ScalaInstallationCache {
+
+    public static final long TTL = Long.getLong(ScalaInstallationCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(5));
+
+    private static final Map<List<String>, String> NODE_HOMES = new ConcurrentHashMap<List<String>, String>();
+    private static final Map<List<String>, CachedExecutable> EXECUTABLES = new ConcurrentHashMap<List<String>, CachedExecutable>();
+
+    private ScalaInstallationCache() {
+    }
+
+    private static class CachedExecutable {
+        final String executable;
+        volatile long validated;
+
+        CachedExecutable(final String executable, final long validated) {
+            this.executable = executable;
+            this.validated = validated;
+        }
+    }
+
+    /**
+     * Gets the executable of the installation on a node
+     *
+     * @param installation The Scala Installation
+     * @param node The node that the build runs on, or null if it has since been removed, in which case the cache is not used
+     * @param env The environment of the build
+     * @param launcher The launcher for the node
+     * @param listener The build listener
+     *
+     * @return The path of the executable, or null if the installation has no executable on the node
+     */
+    public static String getExecutable(final ScalaInstallation installation, final Node node, final EnvVars env, final Launcher launcher, final TaskListener listener) throws IOException, InterruptedException {
+        if(node == null) {
+            return installation.forEnvironment(env).getExecutable(launcher, launcher.getChannel());
+        }
+
+        final String nodeName = node.getNodeName();
+
+        final List<String> nodeHomeKey = Arrays.asList(installation.getName(), installation.getHome(), nodeName);
+        String nodeHome = NODE_HOMES.get(nodeHomeKey);
+        if(nodeHome == null) {
+            nodeHome = installation.forNode(node, listener).getHome();
+            if(nodeHome != null) {
+                NODE_HOMES.put(nodeHomeKey, nodeHome);
+            }
+        }
+
+        final ScalaInstallation resolved = new ScalaInstallation(installation.getName(), nodeHome, installation.getProperties().toList()).forEnvironment(env);
+
+        final List<String> executableKey = Arrays.asList(nodeName, resolved.getHome(), String.valueOf(launcher.isUnix()));
+        final CachedExecutable cached = EXECUTABLES.get(executableKey);
+        final long now = System.currentTimeMillis();
+        if(cached != null) {
+            if(now - cached.validated < TTL) {
+                return cached.executable;
+            } else if(launcher.getChannel().call(new Exists(cached.executable))) {
+                cached.validated = now;
+                return cached.executable;
+            } else {
+                //the home may have been removed with the executable, so resolve the installation again, which reinstalls it
+                EXECUTABLES.remove(executableKey);
+                NODE_HOMES.remove(nodeHomeKey);
+                return getExecutable(installation, node, env, launcher, listener);
+            }
+        }
+
+        final String executable = resolved.getExecutable(launcher, launcher.getChannel());
+        if(executable != null) {
+            EXECUTABLES.put(executableKey, new CachedExecutable(executable, now));
+        }
+        return executable;
+    }
+
+    /**
+     * Invalidates all of the entries
+     */
+    public static void invalidate() {
+        NODE_HOMES.clear();
+        EXECUTABLES.clear();
+    }
+
+    /**
+     * Invalidates the entries of a node
+     *
+     * @param nodeName The name of the node
+     */
+    public static void invalidate(final String nodeName) {
+        for(final Iterator<List<String>> it = NODE_HOMES.keySet().iterator(); it.hasNext();) {
+            if(it.next().get(2).equals(nodeName)) {
+                it.remove();
+            }
+        }
+        for(final Iterator<List<String>> it = EXECUTABLES.keySet().iterator(); it.hasNext();) {
+            if(it.next().get(0).equals(nodeName)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Exists implements Callable<Boolean, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        Exists(final String path) {
+            this.path = path;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            return new File(path).exists();
+        }
+    }
+
+    /**
+     * An agent that comes online again may have been replaced, or its tools reinstalled
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) throws IOException, InterruptedException {
+            invalidate(c.getName());
+        }
+    }
+}
@@ -33,16 +33,102 @@
 package hudson.plugins.scala;
 
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.model.TaskListener;
 import hudson.tools.DownloadFromUrlInstaller;
 import hudson.tools.ToolInstallation;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class ScalaInstaller extends DownloadFromUrlInstaller {                                                                                
-    
+
+    /**
+     * The URL of a local mirror of the Scala distributions, which replaces
+     * everything but the file name of the URLs from http://scala-lang.org
+     */
+    public static final String MIRROR_PROPERTY = ScalaInstaller.class.getName() + ".mirror";
+
     @DataBoundConstructor                                                                                                                      
     public ScalaInstaller(final String id) {                                                                                                        
         super(id);                                                                                                                             
     }                                                                                                                                          
+
+    /**
+     * Rather than each node downloading the distribution itself, the archive
+     * is downloaded once into a cache on the controller and is then streamed
+     * to each node over its channel and unpacked there.
+     *
+     * If the controller cannot download the archive, the node downloads it as before.
+     */
+    @Override
+    public FilePath performInstallation(final ToolInstallation tool, final Node node, final TaskListener log) throws IOException, InterruptedException {
+        final FilePath expected = preferredLocation(tool, node);
+        final Installable installable = getInstallable();
+        if(installable == null) {
+            log.getLogger().println("Invalid tool ID " + id);
+            return expected;
+        }
+
+        if(isUpToDate(expected, installable)) {
+            return expected;
+        }
+
+        final File archive;
+        try {
+            archive = ScalaArchiveCache.getInstance().fetch(getMirroredUrl(installable.url), log);
+        } catch(final IOException ioe) {
+            log.getLogger().println("[SCALA PLUGIN WARNING] Could not cache the Scala distribution on the controller, the node will download it instead: " + ioe.getMessage());
+            return super.performInstallation(tool, node, log);
+        }
+
+        log.getLogger().println("Unpacking " + archive.getName() + " to " + expected + " on " + node.getDisplayName());
+        expected.deleteRecursive();
+        expected.mkdirs();
+        final InputStream is = new FileInputStream(archive);
+        try {
+            if(archive.getName().endsWith(".zip")) {
+                expected.unzipFrom(is);
+            } else {
+                expected.untarFrom(is, FilePath.TarCompression.GZIP);
+            }
+        } finally {
+            is.close();
+        }
+
+        final FilePath base = findPullUpDirectory(expected);
+        if(base != null && !base.equals(expected)) {
+            base.moveAllChildrenTo(expected);
+        }
+
+        //leave a record for the next up-to-date check
+        expected.child(".installedFrom").write(installable.url, "UTF-8");
+
+        //the archives do not always preserve the permissions of the scripts
+        final FilePath bin = expected.child("bin");
+        if(bin.isDirectory()) {
+            for(final FilePath executable : bin.list()) {
+                executable.chmod(0755);
+            }
+        }
+
+        return expected;
+    }
+
+    private URL getMirroredUrl(final String url) throws IOException {
+        final String mirror = System.getProperty(MIRROR_PROPERTY);
+        if(mirror == null || mirror.trim().isEmpty()) {
+            return new URL(url);
+        } else {
+            final String trimmedMirror = mirror.trim();
+            final String fileName = url.substring(url.lastIndexOf('/') + 1);
+            return new URL(trimmedMirror.endsWith("/") ? trimmedMirror + fileName : trimmedMirror + "/" + fileName);
+        }
+    }
                                                                                                                                                
     @Extension                                                                                                                                 
     public static final class DescriptorImpl extends DownloadFromUrlInstaller.DescriptorImpl<ScalaInstaller> {                                
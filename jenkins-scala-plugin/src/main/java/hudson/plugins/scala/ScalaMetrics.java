@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import hudson.plugins.scala.executer.AdmissionControl;
+import hudson.plugins.scala.executer.PhaseTimings;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Aggregate metrics of the Scala build steps of all jobs,
+ * since Jenkins was started.
+ *
+ * Available at /scala-metrics and through the remote
+ * API at /scala-metrics/api/json, to administrators only
+ * as the metrics are of all jobs
+ */
+@Extension
+@ExportedBean
+public class ScalaMetrics implements RootAction, StaplerProxy {
+
+    /**
+     * The name of the histogram of the total time of each build step
+     */
+    static final String TOTAL = "total";
+
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final AtomicLong EXECUTIONS = new AtomicLong();
+    private static final AtomicLong CACHE_HITS = new AtomicLong();
+    private static final AtomicLong CACHE_MISSES = new AtomicLong();
+    private static final Map<String, TimingHistogram> HISTOGRAMS = new LinkedHashMap<String, TimingHistogram>();
+
+    /**
+     * Records that a Scala build step has started
+     */
+    static void started() {
+        IN_FLIGHT.incrementAndGet();
+    }
+
+    /**
+     * Records that a Scala build step has finished
+     *
+     * @param timings The timings of the build step
+     */
+    static void finished(final PhaseTimings timings) {
+        IN_FLIGHT.decrementAndGet();
+        EXECUTIONS.incrementAndGet();
+
+        long total = 0;
+        for(final Map.Entry<String, Long> phase : timings.toMap().entrySet()) {
+            histogram(phase.getKey()).record(phase.getValue());
+            total += phase.getValue();
+        }
+        histogram(TOTAL).record(total);
+
+        //a compilation is only recorded when the cache did not hold the script
+        if(timings.contains(PhaseTimings.CacheLookup())) {
+            if(timings.contains(PhaseTimings.Compilation())) {
+                CACHE_MISSES.incrementAndGet();
+            } else {
+                CACHE_HITS.incrementAndGet();
+            }
+        }
+    }
+
+    private static TimingHistogram histogram(final String phase) {
+        synchronized(HISTOGRAMS) {
+            TimingHistogram histogram = HISTOGRAMS.get(phase);
+            if(histogram == null) {
+                histogram = new TimingHistogram(phase);
+                HISTOGRAMS.put(phase, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    //<editor-fold desc="getter/setter">
+    /**
+     * @return the number of Scala build steps which are running now
+     */
+    @Exported
+    public int getInFlight() {
+        return IN_FLIGHT.get();
+    }
+
+    @Exported
+    public long getExecutions() {
+        return EXECUTIONS.get();
+    }
+
+    @Exported
+    public long getCacheHits() {
+        return CACHE_HITS.get();
+    }
+
+    @Exported
+    public long getCacheMisses() {
+        return CACHE_MISSES.get();
+    }
+
+    /**
+     * @return the ratio of cache lookups which found a compiled script, or 0 if there have been none
+     */
+    @Exported
+    public double getCacheHitRatio() {
+        final long hits = CACHE_HITS.get();
+        final long lookups = hits + CACHE_MISSES.get();
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    /**
+     * @return the number of in-VM compilations in this JVM which are running now
+     */
+    @Exported
+    public int getCompilationsRunning() {
+        return AdmissionControl.Compilations().runningCount();
+    }
+
+    /**
+     * @return the number of in-VM compilations in this JVM which are waiting to be admitted
+     */
+    @Exported
+    public int getCompilationsWaiting() {
+        return AdmissionControl.Compilations().waitingCount();
+    }
+
+    @Exported
+    public int getExecutionsRunning() {
+        return AdmissionControl.Executions().runningCount();
+    }
+
+    @Exported
+    public int getExecutionsWaiting() {
+        return AdmissionControl.Executions().waitingCount();
+    }
+
+    @Exported(inline = true)
+    public List<TimingHistogram> getPhases() {
+        synchronized(HISTOGRAMS) {
+            return new ArrayList<TimingHistogram>(HISTOGRAMS.values());
+        }
+    }
+    //</editor-fold>
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * Checks the permission of each request for the page or the remote API
+     */
+    @Override
+    public Object getTarget() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return this;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Scala Metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "scala-metrics";
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Future;
+
+/**
+ * The compilation of the script of a Scala build step in the
+ * background, ahead of the first build of the step
+ */
+public class ScalaPrecompilation {
+
+    public enum Status {
+        QUEUED,
+        COMPILING,
+        SUCCEEDED,
+        FAILED,
+        SKIPPED
+    }
+
+    private final int step;
+    private volatile Status status = Status.QUEUED;
+    private volatile String log = "";
+    private volatile long millis;
+    private volatile Future<?> future;
+
+    /**
+     * @param step The position of the build step within the project, starting from 1
+     */
+    public ScalaPrecompilation(final int step) {
+        this.step = step;
+    }
+
+    //<editor-fold desc="getter/setter">
+    public int getStep() {
+        return step;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the output of the compiler
+     */
+    public String getLog() {
+        return log;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+    //</editor-fold>
+
+    /**
+     * @return true if the script has yet to be compiled
+     */
+    public boolean isPending() {
+        return status == Status.QUEUED || status == Status.COMPILING;
+    }
+
+    /**
+     * @return true if the script did not compile
+     */
+    public boolean isFailed() {
+        return status == Status.FAILED;
+    }
+
+    /**
+     * Compiles the script of the build step
+     */
+    void run(final AbstractScalaBuilder builder) {
+        status = Status.COMPILING;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TaskListener listener = new StreamTaskListener(out);
+        final long start = System.nanoTime();
+        boolean compiled = false;
+        try {
+            compiled = builder.precompile(listener);
+        } catch(final Exception e) {
+            e.printStackTrace(listener.getLogger());
+        } finally {
+            listener.getLogger().flush();
+            log = out.toString();
+            millis = (System.nanoTime() - start) / 1000000;
+            status = compiled ? Status.SUCCEEDED : Status.FAILED;
+        }
+    }
+
+    void queued(final Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * Records that the compilation could not be queued
+     */
+    void skipped() {
+        status = Status.SKIPPED;
+    }
+
+    /**
+     * Cancels the compilation if it has not yet started
+     */
+    void cancel() {
+        final Future<?> queued = future;
+        if(queued != null) {
+            queued.cancel(false);
+        }
+    }
+}
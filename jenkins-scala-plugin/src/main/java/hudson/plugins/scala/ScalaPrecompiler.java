@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Project;
+import hudson.model.listeners.ItemListener;
+import hudson.tasks.Builder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.model.Jenkins;
+
+/**
+ * Compiles the scripts of the Scala build steps of a project in the
+ * background whenever its configuration is saved, and of all projects
+ * when Jenkins starts, so that the first build of a changed script
+ * finds it already compiled, and any compile errors are shown on the
+ * page of the project before it is built.
+ *
+ * Only the scripts that can be compiled without a build are compiled,
+ * see AbstractScalaBuilder.isPrecompilable().
+ *
+ * The compilations are run by a bounded pool of low priority threads,
+ * which may be tuned through the system properties:
+ *   hudson.plugins.scala.ScalaPrecompiler.disabled
+ *   hudson.plugins.scala.ScalaPrecompiler.threads
+ *   hudson.plugins.scala.ScalaPrecompiler.queueSize
+ */
+@Extension
+public class ScalaPrecompiler extends ItemListener {
+
+    private static final String PROPERTY_PREFIX = ScalaPrecompiler.class.getName();
+
+    private static final boolean DISABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".disabled");
+
+    private static final int THREADS = Integer.getInteger(PROPERTY_PREFIX + ".threads", 1);
+
+    private static final int QUEUE_SIZE = Integer.getInteger(PROPERTY_PREFIX + ".queueSize", 100);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Scala precompilation " + count.incrementAndGet());
+            thread.setDaemon(true);
+            //builds come first
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The precompilations of the current configuration of each project, by the full name of the project
+     */
+    private static final ConcurrentMap<String, List<ScalaPrecompilation>> PRECOMPILATIONS = new ConcurrentHashMap<String, List<ScalaPrecompilation>>();
+
+    @Override
+    public void onLoaded() {
+        for(final Project<?, ?> project : Jenkins.getInstance().getAllItems(Project.class)) {
+            precompile(project);
+        }
+    }
+
+    @Override
+    public void onCreated(final Item item) {
+        if(item instanceof AbstractProject) {
+            precompile((AbstractProject<?, ?>)item);
+        }
+    }
+
+    @Override
+    public void onUpdated(final Item item) {
+        if(item instanceof AbstractProject) {
+            precompile((AbstractProject<?, ?>)item);
+        }
+    }
+
+    @Override
+    public void onDeleted(final Item item) {
+        replace(item.getFullName(), Collections.<ScalaPrecompilation>emptyList());
+    }
+
+    @Override
+    public void onRenamed(final Item item, final String oldName, final String newName) {
+        if(item instanceof AbstractProject) {
+            replace(oldName, Collections.<ScalaPrecompilation>emptyList());
+            precompile((AbstractProject<?, ?>)item);
+        }
+    }
+
+    /**
+     * Queues the compilation of the scripts of the Scala build steps of the project,
+     * replacing any compilations of its previous configuration
+     */
+    static void precompile(final AbstractProject<?, ?> project) {
+        if(DISABLED) {
+            return;
+        }
+
+        final List<ScalaPrecompilation> precompilations = new ArrayList<ScalaPrecompilation>();
+        int step = 0;
+        for(final Builder builder : getBuilders(project)) {
+            step++;
+            if(builder instanceof AbstractScalaBuilder && ((AbstractScalaBuilder)builder).isPrecompilable()) {
+                final AbstractScalaBuilder scalaBuilder = (AbstractScalaBuilder)builder;
+                final ScalaPrecompilation precompilation = new ScalaPrecompilation(step);
+                try {
+                    precompilation.queued(EXECUTOR.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            precompilation.run(scalaBuilder);
+                        }
+                    }));
+                } catch(final RejectedExecutionException ree) {
+                    //the queue is full, the script will be compiled by its first build instead
+                    precompilation.skipped();
+                }
+                precompilations.add(precompilation);
+            }
+        }
+        replace(project.getFullName(), precompilations);
+    }
+
+    private static void replace(final String projectName, final List<ScalaPrecompilation> precompilations) {
+        final List<ScalaPrecompilation> previous = precompilations.isEmpty() ? PRECOMPILATIONS.remove(projectName) : PRECOMPILATIONS.put(projectName, Collections.unmodifiableList(precompilations));
+        if(previous != null) {
+            for(final ScalaPrecompilation precompilation : previous) {
+                precompilation.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return the precompilations of the current configuration of the project
+     */
+    static List<ScalaPrecompilation> getPrecompilations(final AbstractProject<?, ?> project) {
+        final List<ScalaPrecompilation> precompilations = PRECOMPILATIONS.get(project.getFullName());
+        if(precompilations == null) {
+            return Collections.emptyList();
+        } else {
+            return precompilations;
+        }
+    }
+
+    /**
+     * @return the Scala build steps of the project
+     */
+    static List<AbstractScalaBuilder> getScalaBuilders(final AbstractProject<?, ?> project) {
+        final List<AbstractScalaBuilder> scalaBuilders = new ArrayList<AbstractScalaBuilder>();
+        for(final Builder builder : getBuilders(project)) {
+            if(builder instanceof AbstractScalaBuilder) {
+                scalaBuilders.add((AbstractScalaBuilder)builder);
+            }
+        }
+        return scalaBuilders;
+    }
+
+    private static List<Builder> getBuilders(final AbstractProject<?, ?> project) {
+        if(project instanceof Project) {
+            return ((Project<?, ?>)project).getBuildersList().toList();
+        } else {
+            return Collections.emptyList();
+        }
+    }
+}
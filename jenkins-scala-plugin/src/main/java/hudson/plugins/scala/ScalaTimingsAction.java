@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.plugins.scala.executer.PhaseTimings;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jenkins.model.RunAction2;
+
+/**
+ * Records the time spent in each phase of the
+ * Scala build steps of a build.
+ *
+ * When a build has more than one Scala build step
+ * the time of each phase is summed across the steps.
+ */
+public class ScalaTimingsAction implements RunAction2 {
+
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private int steps;
+
+    private transient Run<?, ?> build;
+
+    /**
+     * Records the timings of a build step on its build
+     *
+     * @param build The build that the step ran in
+     * @param timings The timings of the step
+     */
+    static void record(final AbstractBuild<?, ?> build, final PhaseTimings timings) {
+        final ScalaTimingsAction action;
+        synchronized(ScalaTimingsAction.class) {
+            final ScalaTimingsAction existing = build.getAction(ScalaTimingsAction.class);
+            if(existing != null) {
+                action = existing;
+            } else {
+                action = new ScalaTimingsAction();
+                build.addAction(action);
+            }
+        }
+        action.add(timings);
+    }
+
+    private synchronized void add(final PhaseTimings timings) {
+        for(final Map.Entry<String, Long> phase : timings.toMap().entrySet()) {
+            final Long millis = phases.get(phase.getKey());
+            phases.put(phase.getKey(), millis == null ? phase.getValue() : millis + phase.getValue());
+        }
+        steps++;
+    }
+
+    //<editor-fold desc="getter/setter">
+    public Run<?, ?> getBuild() {
+        return build;
+    }
+
+    /**
+     * @return the milliseconds spent in each phase, in the order that the phases occurred
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(phases);
+    }
+
+    /**
+     * @return the number of Scala build steps that were timed
+     */
+    public synchronized int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the milliseconds spent in all phases
+     */
+    public synchronized long getTotal() {
+        long total = 0;
+        for(final Long millis : phases.values()) {
+            total += millis;
+        }
+        return total;
+    }
+    //</editor-fold>
+
+    @Override
+    public void onAttached(final Run<?, ?> r) {
+        this.build = r;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> r) {
+        this.build = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Scala Timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "scalaTimings";
+    }
+}
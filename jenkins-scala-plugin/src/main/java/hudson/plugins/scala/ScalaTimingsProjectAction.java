@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.plugins.scala.executer.PhaseTimings;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+
+/**
+ * Shows the trend of the Scala timings across the builds of a project
+ */
+public class ScalaTimingsProjectAction implements Action {
+
+    /**
+     * The number of builds shown on the trend chart
+     */
+    private static final int MAX_BUILDS = 50;
+
+    private final AbstractProject<?, ?> project;
+
+    public ScalaTimingsProjectAction(final AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * @return true if any of the recent builds have Scala timings
+     */
+    public boolean hasTimings() {
+        return !getTimedBuilds().isEmpty();
+    }
+
+    /**
+     * @return the trend chart, served as graph/png
+     */
+    public Graph getGraph() {
+        final AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+        final long timestamp = lastBuild == null ? 0 : lastBuild.getTimestamp().getTimeInMillis();
+
+        return new Graph(timestamp, 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                final JFreeChart chart = ChartFactory.createStackedAreaChart(null, null, "milliseconds", createDataSet(), PlotOrientation.VERTICAL, true, true, false);
+                chart.setBackgroundPaint(Color.WHITE);
+
+                final CategoryPlot plot = chart.getCategoryPlot();
+                plot.setBackgroundPaint(Color.WHITE);
+                plot.setOutlinePaint(null);
+                plot.setRangeGridlinesVisible(true);
+                plot.setRangeGridlinePaint(Color.BLACK);
+                return chart;
+            }
+        };
+    }
+
+    private CategoryDataset createDataSet() {
+        final List<AbstractBuild<?, ?>> builds = getTimedBuilds();
+
+        //every build needs a value for every phase, or the areas are not stacked
+        final Set<String> phases = new LinkedHashSet<String>(Arrays.asList(
+            PhaseTimings.Installation(),
+            PhaseTimings.ScriptFetch(),
+            PhaseTimings.Hashing(),
+            PhaseTimings.CacheLookup(),
+            PhaseTimings.Compilation(),
+            PhaseTimings.ClassLoading(),
+            PhaseTimings.Execution()
+        ));
+        for(final AbstractBuild<?, ?> build : builds) {
+            phases.addAll(build.getAction(ScalaTimingsAction.class).getPhases().keySet());
+        }
+
+        final DataSetBuilder<String, NumberOnlyBuildLabel> dataSet = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+        for(final AbstractBuild<?, ?> build : builds) {
+            final Map<String, Long> timings = build.getAction(ScalaTimingsAction.class).getPhases();
+            final NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+            for(final String phase : phases) {
+                final Long millis = timings.get(phase);
+                dataSet.add(millis == null ? 0 : millis, phase, label);
+            }
+        }
+        return dataSet.build();
+    }
+
+    private List<AbstractBuild<?, ?>> getTimedBuilds() {
+        final List<AbstractBuild<?, ?>> timedBuilds = new ArrayList<AbstractBuild<?, ?>>();
+        for(final AbstractBuild<?, ?> build : project.getBuilds()) {
+            if(timedBuilds.size() == MAX_BUILDS) {
+                break;
+            }
+            if(build.getAction(ScalaTimingsAction.class) != null) {
+                timedBuilds.add(build);
+            }
+        }
+        return timedBuilds;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Scala Timings Trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "scalaTimings";
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2014, Adam Retter <adam.retter@googlemail.com>
+ * All rights reserved.
+ *
+ * This software includes code from: groovy-plugin https://github.com/jenkinsci/groovy-plugin,
+ * Copyright (c) <2007> <Red Hat, Inc.>.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *   Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ *   Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package hudson.plugins.scala;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * A histogram of the milliseconds spent in a phase
+ * of running Scala scripts, across all builds
+ */
+@ExportedBean
+public class TimingHistogram {
+
+    /**
+     * The upper bounds of the buckets in milliseconds,
+     * there is a further bucket for anything longer
+     */
+    static final long[] BUCKETS = { 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000 };
+
+    private final String phase;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    TimingHistogram(final String phase) {
+        this.phase = phase;
+    }
+
+    void record(final long millis) {
+        int bucket = 0;
+        while(bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+
+        long currentMax = max.get();
+        while(millis > currentMax && !max.compareAndSet(currentMax, millis)) {
+            currentMax = max.get();
+        }
+    }
+
+    //<editor-fold desc="getter/setter">
+    @Exported
+    public String getPhase() {
+        return phase;
+    }
+
+    @Exported
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the total milliseconds spent in the phase
+     */
+    @Exported
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Exported
+    public long getMax() {
+        return max.get();
+    }
+
+    @Exported
+    public long getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @return the cumulative count of each bucket, ending with the bucket of all values
+     */
+    @Exported(inline = true)
+    public List<Bucket> getBuckets() {
+        final List<Bucket> buckets = new ArrayList<Bucket>(BUCKETS.length + 1);
+        long cumulative = 0;
+        for(int i = 0; i < BUCKETS.length; i++) {
+            cumulative += counts.get(i);
+            buckets.add(new Bucket(String.valueOf(BUCKETS[i]), cumulative));
+        }
+        cumulative += counts.get(BUCKETS.length);
+        buckets.add(new Bucket("+Inf", cumulative));
+        return buckets;
+    }
+    //</editor-fold>
+
+    @ExportedBean
+    public static class Bucket {
+        private final String le;
+        private final long count;
+
+        Bucket(final String le, final long count) {
+            this.le = le;
+            this.count = count;
+        }
+
+        /**
+         * @return the upper bound of the bucket in milliseconds
+         */
+        @Exported
+        public String getLe() {
+            return le;
+        }
+
+        @Exported
+        public long getCount() {
+            return count;
+        }
+    }
+}
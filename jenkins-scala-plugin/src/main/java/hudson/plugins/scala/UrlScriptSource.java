@@ -38,10 +38,14 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.plugins.scala.executer.CachedScript;
+import hudson.plugins.scala.executer.UrlScriptCache;
 import hudson.util.FormValidation;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import net.sf.json.JSONObject;
@@ -51,6 +55,11 @@ import org.kohsuke.stapler.StaplerRequest;
 
 public class UrlScriptSource implements ScriptSource {
 
+    /**
+     * Directory within the workspace that scripts fetched from URLs are copied into
+     */
+    public static final String SCRIPT_DIRECTORY = ".scala-url-scripts";
+
     private String scriptUrl;
 
     @DataBoundConstructor
@@ -66,9 +75,40 @@ public class UrlScriptSource implements ScriptSource {
      */
     @Override
     public FilePath getScriptFile(final FilePath projectWorkspace) throws IOException, InterruptedException {
-        final FilePath tempFile = projectWorkspace.createTempFile("hudson", ".scala");
-        tempFile.copyFrom(new URL(scriptUrl));
-        return tempFile;
+        return getScriptFile(projectWorkspace, TaskListener.NULL.getLogger());
+    }
+
+    /**
+     * The script is fetched through the cache on the controller, and copied
+     * into the workspace in a file named after the hash of its content. The
+     * copy is only made when the workspace does not already hold that content.
+     *
+     * Copies which have not been used for the maximum age of the cache, such
+     * as the previous content of a URL that has changed, are removed.
+     */
+    private FilePath getScriptFile(final FilePath projectWorkspace, final PrintStream logger) throws IOException, InterruptedException {
+        final UrlScriptCache cache = UrlScriptCache.controllerCache();
+        final CachedScript cachedScript = cache.fetch(new URL(scriptUrl), logger);
+
+        final FilePath scriptDirectory = projectWorkspace.child(SCRIPT_DIRECTORY);
+        final FilePath scriptFile = scriptDirectory.child(cachedScript.hash() + ".scala");
+        if(!scriptFile.exists()) {
+            scriptDirectory.mkdirs();
+            final FilePath tempFile = scriptDirectory.createTempFile("hudson", ".tmp");
+            new FilePath(cachedScript.file()).copyTo(tempFile);
+            tempFile.renameTo(scriptFile);
+        } else {
+            //the age of a copy is from when it was last used
+            scriptFile.touch(System.currentTimeMillis());
+        }
+
+        final long expired = System.currentTimeMillis() - cache.maxAge();
+        for(final FilePath copy : scriptDirectory.list("*.scala")) {
+            if(copy.lastModified() < expired) {
+                copy.delete();
+            }
+        }
+        return scriptFile;
     }
 
     /**
@@ -83,7 +123,7 @@ public class UrlScriptSource implements ScriptSource {
      */
     @Override
     public FilePath getScriptFile(final FilePath projectWorkspace, final AbstractBuild<?,?> build, final BuildListener listener) throws IOException, InterruptedException {
-        return getScriptFile(projectWorkspace);
+        return getScriptFile(projectWorkspace, listener.getLogger());
     }
 
     //<editor-fold desc="getter/setter">